@@ -0,0 +1,53 @@
+package bench;
+
+import java.util.Random;
+
+/**
+ * Random vectors and signatures in the text formats read by the jobs.
+ */
+public class SyntheticData {
+
+	/**
+	 * @return Tab-separated "index:value" tokens with distinct, ascending
+	 *         indices starting from 1.
+	 */
+	public static String sparseVector(Random random, int dimension, int nonZeros) {
+		StringBuilder vector = new StringBuilder();
+		int remaining = Math.min(nonZeros, dimension);
+		for (int index = 1; index <= dimension && remaining > 0; index++) {
+			// Selection sampling keeps the indices sorted and distinct
+			if (random.nextInt(dimension - index + 1) < remaining) {
+				if (vector.length() > 0) {
+					vector.append('\t');
+				}
+				vector.append(index).append(':')
+						.append(Math.round(random.nextDouble() * 1000) / 100.0);
+				remaining--;
+			}
+		}
+		return vector.toString();
+	}
+
+	public static double[] denseVector(Random random, int dimension) {
+		double[] vector = new double[dimension];
+		for (int i = 0; i < dimension; i++) {
+			vector[i] = random.nextGaussian();
+		}
+		return vector;
+	}
+
+	/**
+	 * @return A signature row as written by EuclideanLsh, with buckets drawn
+	 *         from [-spread, spread].
+	 */
+	public static String signatureRow(Random random, int signatureLength, int spread, String entry) {
+		StringBuilder row = new StringBuilder();
+		for (int h = 0; h < signatureLength; h++) {
+			if (h > 0) {
+				row.append(',');
+			}
+			row.append(random.nextInt(2 * spread + 1) - spread);
+		}
+		return row.append('\t').append(entry).toString();
+	}
+}
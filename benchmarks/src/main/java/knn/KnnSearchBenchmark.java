@@ -0,0 +1,111 @@
+package knn;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bench.SyntheticData;
+import lsh.EuclideanHashFamily;
+
+/**
+ * End-to-end k-NN search over a synthetic signature file, in the bounded
+ * top-k mode and in the collect-everything mode.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.AverageTime, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class KnnSearchBenchmark {
+
+	@Param({ "100000" })
+	public int corpusSize;
+
+	@Param({ "20" })
+	public int signatureLength;
+
+	@Param({ "1000" })
+	public int dimension;
+
+	@Param({ "10" })
+	public int k;
+
+	private Path directory;
+	private Path signatureFile;
+	private String hashFile;
+	private String searchFile;
+	private File outputFile;
+	private LazyKnnSearch topKSearch;
+	private LazyKnnSearch fullSearch;
+
+	@Setup(Level.Trial)
+	public void writeCorpus() throws IOException {
+		Random random = new Random(42);
+		directory = Files.createTempDirectory("knn-bench");
+		hashFile = directory.resolve("hash").toString();
+		ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(hashFile));
+		oos.writeObject(new EuclideanHashFamily(42, signatureLength, dimension, 10, 20));
+		oos.close();
+		searchFile = directory.resolve("query").toString();
+		Files.write(Paths.get(searchFile), Collections.singletonList(SyntheticData.sparseVector(random, dimension, 50)));
+		signatureFile = directory.resolve("part-m-00000");
+		PrintWriter pw = new PrintWriter(signatureFile.toFile());
+		for (int i = 0; i < corpusSize; i++) {
+			pw.println(SyntheticData.signatureRow(random, signatureLength, 3, "entry" + i));
+		}
+		pw.close();
+		outputFile = directory.resolve("neighbours").toFile();
+	}
+
+	// A search accumulates rows, so every invocation needs a fresh one
+	@Setup(Level.Invocation)
+	public void newSearch() throws IOException, ClassNotFoundException {
+		topKSearch = new LazyKnnSearch(hashFile, searchFile, k);
+		fullSearch = new LazyKnnSearch(hashFile, searchFile);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteCorpus() throws IOException {
+		for (File file : directory.toFile().listFiles()) {
+			file.delete();
+		}
+		Files.delete(directory);
+	}
+
+	@Benchmark
+	public LazyKnnSearch topKSearch() throws IOException {
+		topKSearch.searchInFile(signatureFile);
+		topKSearch.getNeighbours(k, outputFile);
+		return topKSearch;
+	}
+
+	@Benchmark
+	public LazyKnnSearch collectAllSearch() throws IOException {
+		fullSearch.searchInFile(signatureFile);
+		fullSearch.getNeighbours(k, outputFile);
+		return fullSearch;
+	}
+}
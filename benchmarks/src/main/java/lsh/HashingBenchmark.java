@@ -0,0 +1,112 @@
+package lsh;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bench.SyntheticData;
+
+/**
+ * Parsing and hashing of a single record by the CosLsh and EuclideanLsh
+ * mappers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashingBenchmark {
+
+	@Param({ "1000", "61236" })
+	public int dimension;
+
+	@Param({ "10", "200" })
+	public int nonZeros;
+
+	@Param({ "20", "64" })
+	public int signatureLength;
+
+	private double[] denseVector;
+	private long[][] hyperplanes;
+	private long[] sketch;
+	private SignSketcher sketcher;
+	private HashProjection projection;
+	private HashProjection mappedProjection;
+	private Path projectionDirectory;
+	private SparseVector sparseVector;
+	private Text record;
+	private double[] projections;
+	private int[] buckets;
+
+	@Setup
+	public void setup() throws IOException {
+		Random random = new Random(42);
+		denseVector = SyntheticData.denseVector(random, dimension);
+		hyperplanes = CosLsh.packHyperplanes(CosLsh.generateRandomHash(42, dimension, signatureLength));
+		sketch = new long[CosLsh.sketchWords(signatureLength)];
+		sketcher = new SignSketcher(hyperplanes);
+		EuclideanHashFamily family = new EuclideanHashFamily(42, signatureLength, dimension, 10, 20);
+		projection = family.generate();
+		projectionDirectory = Files.createTempDirectory("projections");
+		mappedProjection = family.mapProjections(projectionDirectory);
+		record = new Text("label\t" + SyntheticData.sparseVector(random, dimension, nonZeros));
+		sparseVector = new SparseVector();
+		sparseVector.parseRecord(record, '\t');
+		projections = new double[signatureLength];
+		buckets = new int[signatureLength];
+	}
+
+	@Benchmark
+	public long[] cosCalculateSketch() {
+		CosLsh.calculateSketch(denseVector, denseVector.length, hyperplanes, sketch);
+		return sketch;
+	}
+
+	@Benchmark
+	public long[] cosSignSketcher() {
+		sketcher.sketch(denseVector, denseVector.length, sketch);
+		return sketch;
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.delete(projectionDirectory.resolve(new EuclideanHashFamily(42, signatureLength, dimension, 10, 20)
+				.getProjectionFileName()));
+		Files.delete(projectionDirectory);
+	}
+
+	@Benchmark
+	public int[] euclideanSignature() {
+		projection.signature(sparseVector, 20, projections, buckets);
+		return buckets;
+	}
+
+	@Benchmark
+	public int[] euclideanSignatureMapped() {
+		mappedProjection.signature(sparseVector, 20, projections, buckets);
+		return buckets;
+	}
+
+	@Benchmark
+	public SparseVector parseRecord() {
+		sparseVector.parseRecord(record, '\t');
+		return sparseVector;
+	}
+}
@@ -0,0 +1,109 @@
+package lsh;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableComparator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Shuffle cost of CosLsh sketch keys: serialization, deserialization and
+ * sorting comparisons on objects and on raw bytes, plus the similarity
+ * test the reducer runs on every key.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SketchSerializationBenchmark {
+
+	@Param({ "30", "256" })
+	public int sketchLength;
+
+	private CosLsh.BitSetWritable sketch;
+	private CosLsh.BitSetWritable other;
+	private CosLsh.BitSetWritable read;
+	private DataOutputBuffer out;
+	private DataInputBuffer in;
+	private byte[] sketchBytes;
+	private byte[] otherBytes;
+	private WritableComparator comparator;
+	private HammingSimilarity similarityTable;
+
+	@Setup
+	public void setup() throws IOException {
+		Random random = new Random(42);
+		BitSet bits = new BitSet(sketchLength);
+		for (int b = 0; b < sketchLength; b++) {
+			if (random.nextBoolean())
+				bits.set(b);
+		}
+		// Sketches sharing their high bits are the expensive case to sort
+		BitSet otherBits = (BitSet) bits.clone();
+		otherBits.flip(0);
+		sketch = new CosLsh.BitSetWritable();
+		sketch.set(bits);
+		other = new CosLsh.BitSetWritable();
+		other.set(otherBits);
+		read = new CosLsh.BitSetWritable();
+		out = new DataOutputBuffer();
+		in = new DataInputBuffer();
+		sketchBytes = serialize(sketch);
+		otherBytes = serialize(other);
+		comparator = WritableComparator.get(CosLsh.BitSetWritable.class);
+		similarityTable = new HammingSimilarity(sketchLength);
+	}
+
+	private static byte[] serialize(CosLsh.BitSetWritable writable) throws IOException {
+		DataOutputBuffer buffer = new DataOutputBuffer();
+		writable.write(buffer);
+		byte[] bytes = new byte[buffer.getLength()];
+		System.arraycopy(buffer.getData(), 0, bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	@Benchmark
+	public int write() throws IOException {
+		out.reset();
+		sketch.write(out);
+		return out.getLength();
+	}
+
+	@Benchmark
+	public CosLsh.BitSetWritable readFields() throws IOException {
+		in.reset(sketchBytes, sketchBytes.length);
+		read.readFields(in);
+		return read;
+	}
+
+	@Benchmark
+	public int compareTo() {
+		return sketch.compareTo(other);
+	}
+
+	@Benchmark
+	public int rawCompare() {
+		return comparator.compare(sketchBytes, 0, sketchBytes.length, otherBytes, 0, otherBytes.length);
+	}
+
+	@Benchmark
+	public double similarity() {
+		return similarityTable.similarity(HammingSimilarity.distance(sketch.words(), other.words()));
+	}
+}
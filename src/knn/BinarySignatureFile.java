@@ -0,0 +1,301 @@
+package knn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import lsh.BinarySignatureOutputFormat;
+import lsh.VarInts;
+
+/**
+ * Reader of the signature files written by BinarySignatureOutputFormat.
+ * Records are compared with the search signature directly in the memory
+ * mapping as primitive ints; only the small entry table is read into the
+ * heap. Records of a block-compressed file are inflated and decoded one
+ * block at a time into an int array that is scanned the same way.
+ */
+public class BinarySignatureFile implements Closeable {
+	// Largest region mapped at once, kept well below the 2 GB mapping limit
+	private static final long	REGION_SIZE	= 1L << 30;
+
+	private final FileChannel	channel;
+	private final int			signatureLength;
+	private final int			recordSize;
+	private final long			numRecords;
+	private final String[]		entries;
+	// Set for block-compressed files: rows per block, and the offset of
+	// every block followed by the offset of the entries
+	private final int			rowsPerBlock;
+	private final long[]		blockOffsets;
+
+	private BinarySignatureFile(FileChannel channel) throws IOException {
+		this.channel = channel;
+		long size = channel.size();
+		ByteBuffer header = readFully(0, BinarySignatureOutputFormat.HEADER_SIZE);
+		long entriesOffset;
+		// The entry table ends where the index or the trailer starts
+		long entriesEnd;
+		if (header.getInt(0) == BinarySignatureOutputFormat.BLOCK_MAGIC) {
+			header = readFully(0, BinarySignatureOutputFormat.BLOCK_HEADER_SIZE);
+			ByteBuffer trailer = readFully(size - BinarySignatureOutputFormat.BLOCK_TRAILER_SIZE,
+					BinarySignatureOutputFormat.BLOCK_TRAILER_SIZE);
+			if (trailer.getInt(24) != BinarySignatureOutputFormat.BLOCK_MAGIC) {
+				throw new IOException("Not a binary signature file");
+			}
+			this.signatureLength = header.getInt(4);
+			this.rowsPerBlock = header.getInt(8);
+			entriesOffset = trailer.getLong(0);
+			entriesEnd = trailer.getLong(8);
+			this.numRecords = trailer.getLong(16);
+			LongBuffer index = readFully(entriesEnd,
+					(int) (size - BinarySignatureOutputFormat.BLOCK_TRAILER_SIZE - entriesEnd)).asLongBuffer();
+			this.blockOffsets = new long[index.remaining()];
+			index.get(blockOffsets);
+		} else {
+			ByteBuffer trailer = readFully(size - BinarySignatureOutputFormat.TRAILER_SIZE,
+					BinarySignatureOutputFormat.TRAILER_SIZE);
+			if (header.getInt(0) != BinarySignatureOutputFormat.MAGIC
+					|| trailer.getInt(8) != BinarySignatureOutputFormat.MAGIC) {
+				throw new IOException("Not a binary signature file");
+			}
+			this.signatureLength = header.getInt(4);
+			this.rowsPerBlock = 0;
+			this.blockOffsets = null;
+			entriesOffset = trailer.getLong(0);
+			entriesEnd = size - BinarySignatureOutputFormat.TRAILER_SIZE;
+			this.numRecords = (entriesOffset - BinarySignatureOutputFormat.HEADER_SIZE)
+					/ (4 * (signatureLength + 1));
+		}
+		this.recordSize = 4 * (signatureLength + 1);
+
+		ByteBuffer entryTable = readFully(entriesOffset, (int) (entriesEnd - entriesOffset));
+		this.entries = new String[entryTable.getInt()];
+		for (int e = 0; e < entries.length; e++) {
+			byte[] bytes = new byte[entryTable.getInt()];
+			entryTable.get(bytes);
+			entries[e] = new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+
+	public static BinarySignatureFile open(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			return new BinarySignatureFile(channel);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public static boolean isBinary(Path path) {
+		return path.getFileName().toString()
+				.endsWith(BinarySignatureOutputFormat.EXTENSION);
+	}
+
+	public int getSignatureLength() {
+		return signatureLength;
+	}
+
+	/**
+	 * @return Rows of each compressed block, 0 for fixed-width records.
+	 */
+	public int getRowsPerBlock() {
+		return rowsPerBlock;
+	}
+
+	public long size() {
+		return numRecords;
+	}
+
+	// Records per mapped region, also a good unit of work for one thread
+	public long recordsPerRegion() {
+		return Math.max(1, REGION_SIZE / recordSize);
+	}
+
+	/**
+	 * Rows of a range of about the given number of stored bytes, whole
+	 * blocks for a compressed file so that no block is inflated twice.
+	 */
+	public long splitRows(long splitBytes) {
+		if (blockOffsets == null) {
+			return Math.max(1, splitBytes / recordSize);
+		}
+		int blocks = blockOffsets.length - 1;
+		long blockBytes = Math.max(1, (blockOffsets[blocks] - blockOffsets[0]) / Math.max(1, blocks));
+		return Math.max(1, splitBytes / blockBytes) * rowsPerBlock;
+	}
+
+	/**
+	 * Bytes of the file holding records [first, last), estimated from the
+	 * average block for a compressed file.
+	 */
+	public long storedBytes(long first, long last) {
+		if (blockOffsets == null || numRecords == 0) {
+			return (last - first) * recordSize;
+		}
+		return (blockOffsets[blockOffsets.length - 1] - blockOffsets[0]) * (last - first) / numRecords;
+	}
+
+	/**
+	 * Counts the positions of records [first, last) not matching the search
+	 * signature and offers the records to the sink with that distance.
+	 */
+	public void search(long first, long last, MultiProbeQuery query,
+			NeighbourSink sink) throws IOException {
+		if (query.getSignatureLength() != signatureLength) {
+			throw new IOException("Signature length does not match the hash function");
+		}
+		int recordInts = signatureLength + 1;
+		forEachRegion(first, last, (records, regionStart, regionRecords) -> {
+			for (int r = 0; r < regionRecords; r++) {
+				int base = r * recordInts;
+				int dist = 0;
+				for (int h = 0; h < signatureLength; h++) {
+					if (!query.matches(h, records.get(base + h))) {
+						dist++;
+					}
+				}
+				if (sink.accepts(dist) && query.isCandidate(dist)) {
+					sink.add(dist, entries[records.get(base + signatureLength)],
+							regionStart + r);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Same as {@link #search(long, long, MultiProbeQuery, NeighbourSink)}
+	 * for a batch of queries, each offering to the sink at the same index.
+	 * Every record is read once and compared with all queries.
+	 */
+	public void search(long first, long last, MultiProbeQuery[] queries,
+			NeighbourSink[] sinks) throws IOException {
+		for (MultiProbeQuery query : queries) {
+			if (query.getSignatureLength() != signatureLength) {
+				throw new IOException("Signature length does not match the hash function");
+			}
+		}
+		int[] buckets = new int[signatureLength];
+		forEachRegion(first, last, (records, regionStart, regionRecords) -> {
+			for (int r = 0; r < regionRecords; r++) {
+				records.get(buckets);
+				int entry = records.get();
+				for (int q = 0; q < queries.length; q++) {
+					int dist = 0;
+					for (int h = 0; h < signatureLength; h++) {
+						if (!queries[q].matches(h, buckets[h])) {
+							dist++;
+						}
+					}
+					if (sinks[q].accepts(dist) && queries[q].isCandidate(dist)) {
+						sinks[q].add(dist, entries[entry], regionStart + r);
+					}
+				}
+			}
+		});
+	}
+
+	/** Receives the records of a file in order. */
+	public interface RecordConsumer {
+		void accept(int[] buckets, String entry) throws IOException;
+	}
+
+	/**
+	 * Reads every record in order. The bucket array is reused between
+	 * records.
+	 */
+	public void forEach(RecordConsumer consumer) throws IOException {
+		int[] buckets = new int[signatureLength];
+		forEachRegion(0, numRecords, (records, regionStart, regionRecords) -> {
+			for (int r = 0; r < regionRecords; r++) {
+				records.get(buckets);
+				consumer.accept(buckets, entries[records.get()]);
+			}
+		});
+	}
+
+	// Records of a region, the first at position 0 of the buffer
+	private interface RegionConsumer {
+		void accept(IntBuffer records, long regionStart, int regionRecords) throws IOException;
+	}
+
+	/**
+	 * Hands records [first, last) to the consumer one region at a time: a
+	 * mapped region of fixed-width records, or the decoded rows of one
+	 * compressed block.
+	 */
+	private void forEachRegion(long first, long last, RegionConsumer consumer) throws IOException {
+		if (blockOffsets == null) {
+			for (long regionStart = first; regionStart < last; regionStart += recordsPerRegion()) {
+				int regionRecords = (int) Math.min(recordsPerRegion(), last - regionStart);
+				IntBuffer records = channel.map(FileChannel.MapMode.READ_ONLY,
+						BinarySignatureOutputFormat.HEADER_SIZE + regionStart * recordSize,
+						(long) regionRecords * recordSize).asIntBuffer();
+				consumer.accept(records, regionStart, regionRecords);
+			}
+			return;
+		}
+		int recordInts = signatureLength + 1;
+		int[] rows = new int[rowsPerBlock * recordInts];
+		byte[] raw = new byte[0];
+		Inflater inflater = new Inflater();
+		try {
+			for (long regionStart = first; regionStart < last;) {
+				int block = (int) (regionStart / rowsPerBlock);
+				long blockStart = (long) block * rowsPerBlock;
+				int blockRows = (int) Math.min(rowsPerBlock, numRecords - blockStart);
+				ByteBuffer stored = readFully(blockOffsets[block],
+						(int) (blockOffsets[block + 1] - blockOffsets[block]));
+				int rawLength = stored.getInt();
+				if (raw.length < rawLength) {
+					raw = new byte[rawLength];
+				}
+				inflater.reset();
+				inflater.setInput(stored.array(), stored.position(), stored.remaining());
+				try {
+					for (int n = 0; n < rawLength;) {
+						int inflated = inflater.inflate(raw, n, rawLength - n);
+						if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+							throw new IOException("Truncated signature block " + block);
+						}
+						n += inflated;
+					}
+				} catch (DataFormatException e) {
+					throw new IOException("Corrupt signature block " + block, e);
+				}
+				VarInts.read(raw, 0, rows, blockRows * recordInts);
+				int skip = (int) (regionStart - blockStart);
+				int regionRecords = (int) (Math.min(blockStart + blockRows, last) - regionStart);
+				consumer.accept(IntBuffer.wrap(rows, skip * recordInts, regionRecords * recordInts).slice(),
+						regionStart, regionRecords);
+				regionStart += regionRecords;
+			}
+		} finally {
+			inflater.end();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private ByteBuffer readFully(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Truncated binary signature file");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+}
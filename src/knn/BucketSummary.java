@@ -0,0 +1,162 @@
+package knn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import lsh.BinarySignatureOutputFormat;
+import lsh.BucketSummaryWriter;
+
+/**
+ * Reader of the bucket summaries written by BucketSummaryWriter. A summary
+ * bounds the number of positions any row of a block can match: a position
+ * counts only if a bucket the query accepts there occurs in the block. A
+ * block whose bound is below the query's minimum number of matches holds no
+ * candidate and need not be read. The summary is small and read whole.
+ */
+public class BucketSummary {
+	private final int		signatureLength;
+	private final int		rowsPerBlock;
+	private final long		numRecords;
+	// Lowest and highest bucket, and the bitmap of the buckets in between,
+	// of every position of every block, block by block
+	private final int[]		lowest;
+	private final int[]		highest;
+	private final long[][]	bitmaps;
+
+	private BucketSummary(ByteBuffer summary) throws IOException {
+		if (summary.remaining() < BucketSummaryWriter.HEADER_SIZE
+				|| summary.getInt() != BucketSummaryWriter.MAGIC) {
+			throw new IOException("Not a bucket summary file");
+		}
+		this.signatureLength = summary.getInt();
+		this.rowsPerBlock = summary.getInt();
+		List<int[]> ranges = new ArrayList<int[]>();
+		List<long[]> blockBitmaps = new ArrayList<long[]>();
+		long records = 0;
+		while (summary.hasRemaining()) {
+			records += summary.getInt();
+			for (int h = 0; h < signatureLength; h++) {
+				int low = summary.getInt();
+				int high = summary.getInt();
+				long[] bitmap = new long[BucketSummaryWriter.bitmapWords(low, high)];
+				summary.asLongBuffer().get(bitmap);
+				summary.position(summary.position() + 8 * bitmap.length);
+				ranges.add(new int[] { low, high });
+				blockBitmaps.add(bitmap.length == 0 ? null : bitmap);
+			}
+		}
+		this.numRecords = records;
+		this.lowest = new int[ranges.size()];
+		this.highest = new int[ranges.size()];
+		for (int i = 0; i < ranges.size(); i++) {
+			lowest[i] = ranges.get(i)[0];
+			highest[i] = ranges.get(i)[1];
+		}
+		this.bitmaps = blockBitmaps.toArray(new long[blockBitmaps.size()][]);
+	}
+
+	public static BucketSummary open(Path path) throws IOException {
+		try {
+			return new BucketSummary(ByteBuffer.wrap(Files.readAllBytes(path)));
+		} catch (RuntimeException e) {
+			throw new IOException("Corrupt bucket summary " + path, e);
+		}
+	}
+
+	/**
+	 * The summary of a signature file, or null if it has none.
+	 */
+	public static BucketSummary openFor(Path signatureFile) throws IOException {
+		Path path = summaryFileOf(signatureFile);
+		return Files.exists(path) ? open(path) : null;
+	}
+
+	public static boolean isSummaryFile(Path path) {
+		return path.getFileName().toString()
+				.endsWith(BucketSummaryWriter.EXTENSION);
+	}
+
+	/**
+	 * The summary file written alongside a signature file.
+	 */
+	public static Path summaryFileOf(Path signatureFile) {
+		String name = signatureFile.getFileName().toString();
+		if (name.endsWith(BinarySignatureOutputFormat.EXTENSION)) {
+			name = name.substring(0, name.length() - BinarySignatureOutputFormat.EXTENSION.length());
+		}
+		return signatureFile.resolveSibling(name + BucketSummaryWriter.EXTENSION);
+	}
+
+	/**
+	 * @return Rows of the summarized file.
+	 */
+	public long size() {
+		return numRecords;
+	}
+
+	public int blocks() {
+		return lowest.length / Math.max(1, signatureLength);
+	}
+
+	/**
+	 * Most positions a row of the given block can match.
+	 */
+	public int possibleMatches(int block, MultiProbeQuery query) {
+		int matches = 0;
+		int base = block * signatureLength;
+		for (int h = 0; h < signatureLength; h++) {
+			int low = Math.max(query.lowest(h), lowest[base + h]);
+			int high = Math.min(query.highest(h), highest[base + h]);
+			if (low > high) {
+				continue;
+			}
+			long[] bitmap = bitmaps[base + h];
+			if (bitmap == null) {
+				matches++;
+				continue;
+			}
+			for (int bucket = low; bucket <= high; bucket++) {
+				int bit = bucket - lowest[base + h];
+				if ((bitmap[bit >>> 6] & (1L << bit)) != 0) {
+					matches++;
+					break;
+				}
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Rows [first, last) of the blocks that may hold a candidate of any of
+	 * the given queries, with adjacent blocks merged into one range.
+	 */
+	public List<long[]> candidateRanges(MultiProbeQuery... queries) throws IOException {
+		for (MultiProbeQuery query : queries) {
+			if (query.getSignatureLength() != signatureLength) {
+				throw new IOException("Signature length does not match the hash function");
+			}
+		}
+		List<long[]> ranges = new ArrayList<long[]>();
+		for (int block = 0; block < blocks(); block++) {
+			boolean candidate = false;
+			for (int q = 0; q < queries.length && !candidate; q++) {
+				candidate = possibleMatches(block, queries[q]) >= queries[q].getMinMatches();
+			}
+			if (!candidate) {
+				continue;
+			}
+			long first = (long) block * rowsPerBlock;
+			long last = Math.min(first + rowsPerBlock, numRecords);
+			if (!ranges.isEmpty() && ranges.get(ranges.size() - 1)[1] == first) {
+				ranges.get(ranges.size() - 1)[1] = last;
+			} else {
+				ranges.add(new long[] { first, last });
+			}
+		}
+		return ranges;
+	}
+}
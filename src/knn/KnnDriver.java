@@ -2,8 +2,11 @@ package knn;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.PrintWriter;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 public class KnnDriver {
 
@@ -16,6 +19,13 @@ public class KnnDriver {
 		String outputFileName = null;
 		;
 		String hashFile = null;
+		String indexDirectory = null;
+		int threads = 1;
+		int probes = 0;
+		int minMatches = 0;
+		int rerank = 0;
+		boolean cosine = false;
+		String statsFileName = null;
 		if (args.length < 4) {
 			// complain
 		} else {
@@ -34,24 +44,92 @@ public class KnnDriver {
 					case "-h":
 						hashFile = (args[++i]);
 						break;
+					case "-i":
+						indexDirectory = (args[++i]);
+						break;
+					case "-t":
+						threads = Integer.parseInt(args[++i]);
+						break;
+					case "-p":
+						probes = Integer.parseInt(args[++i]);
+						break;
+					case "-m":
+						minMatches = Integer.parseInt(args[++i]);
+						break;
+					case "-r":
+						rerank = Integer.parseInt(args[++i]);
+						break;
+					case "-cos":
+						cosine = true;
+						break;
+					case "-s":
+						statsFileName = (args[++i]);
+						break;
 				}
 			}
 		}
-		LazyKnnSearch searcher = new LazyKnnSearch(hashFile, searchFile);
-		Files.walk(Paths.get(LSH_SIG_Directory)).forEach(filePath -> {
-			try {
-				if (Files.isRegularFile(filePath)
-						&& !Files.isHidden(filePath)) {
+		if (knn <= 0 || hashFile == null || searchFile == null || outputFileName == null) {
+			System.err.println(
+					"Usage : KnnDriver -k knn -f search_file -o output_file -h hash_function_file [-i index directory] [-t threads] [-p probes] [-m min matches] [-r rerank] [-cos] [-s stats file]");
+			System.exit(1);
+		}
+		LazyKnnSearch searcher = new LazyKnnSearch(hashFile, searchFile, knn);
+		if (probes > 0) {
+			searcher.setProbes(probes);
+		}
+		if (minMatches > 0) {
+			searcher.setMinMatches(minMatches);
+		}
+		if (rerank > 0) {
+			searcher.setRerank(rerank, cosine);
+		}
+		SearchStats stats = null;
+		if (statsFileName != null) {
+			stats = new SearchStats();
+			searcher.setStats(stats);
+		}
+		long start = System.nanoTime();
+		Path signatureDirectory = Paths.get(LSH_SIG_Directory);
+		if (indexDirectory != null) {
+			// Vector files stay with the signature files, which may be in
+			// segment directories
+			Map<Path, Path> vectorFiles = LazyKnnSearch.listFiles(signatureDirectory).stream()
+					.filter(VectorStore::isVectorFile)
+					.collect(Collectors.toMap(Path::getFileName, filePath -> filePath));
+			// Look up the search buckets in the indexes built by
+			// SignatureIndex instead of scanning the signature files
+			LazyKnnSearch.listFiles(Paths.get(indexDirectory)).forEach(filePath -> {
+				try {
+					if (filePath.toString().endsWith(SignatureIndex.INDEX_SUFFIX)) {
+						searcher.searchInIndex(SignatureIndex.open(filePath),
+								vectorFiles.get(VectorStore.vectorFileOf(filePath).getFileName()));
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+		} else if (threads > 1) {
+			// Files deleted by a compaction during the search are skipped
+			searcher.searchInFiles(LazyKnnSearch.signatureFiles(signatureDirectory), threads);
+		} else {
+			for (Path filePath : LazyKnnSearch.signatureFiles(signatureDirectory)) {
+				try {
 					searcher.searchInFile(filePath);
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
-			} catch (IOException e) {
-				e.printStackTrace();
 			}
-		});
+		}
 		File outputFile = new File(outputFileName);
 		if (!outputFile.exists()) {
 			outputFile.createNewFile();
 		}
 		searcher.getNeighbours(knn, outputFile);
+		if (stats != null) {
+			stats.recordQuery(System.nanoTime() - start);
+			try (PrintWriter pw = new PrintWriter(statsFileName)) {
+				stats.writeReport(pw);
+			}
+		}
 	}
 }
@@ -0,0 +1,394 @@
+package knn;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import lsh.SparseVector;
+
+/**
+ * Long-running k-NN search over a signature directory. The hash function
+ * is loaded once, text signature files are parsed once into memory, binary
+ * signature files and vector files stay mapped, and indexes stay open, so a
+ * query costs one scan instead of a JVM start and a reload.
+ *
+ * Queries waiting when a scan starts, or arriving within the batch window
+ * of the first one, are searched together in one pass over the signatures:
+ * every row is read once and compared with all of them. With a minimum
+ * number of matches, files and blocks whose bucket summary rules out a
+ * candidate for every query of the batch are skipped.
+ *
+ * Clients connect to the port on the loopback address and send one search
+ * vector per line, in the format of a KnnDriver search file. The answer to
+ * each line is its neighbours, one "distance TAB entry" per line as written
+ * by KnnDriver, followed by an empty line. A query that fails is answered
+ * with a line "ERROR TAB message" instead. The line "STATS" is answered
+ * with the JSON report of SearchStats for all queries so far.
+ */
+public class KnnServer implements Closeable {
+	public static final int		DEFAULT_PORT	= 7474;
+	// Request line answered with the statistics report of all queries so far
+	public static final String	STATS_REQUEST	= "STATS";
+
+	private final LazyKnnSearch	template;
+	private final int			k;
+	private final long			windowNanos;
+	private final int			maxBatch;
+	private final List<ResidentFile>	files		= new ArrayList<ResidentFile>();
+	private final List<ResidentIndex>	indexes		= new ArrayList<ResidentIndex>();
+	private final BlockingQueue<PendingQuery>	pending	= new LinkedBlockingQueue<PendingQuery>();
+	private final SearchStats			stats	= new SearchStats();
+
+	/**
+	 * @param template
+	 *            Search holding the hash function, probes and re-ranking of
+	 *            every query.
+	 * @param windowMillis
+	 *            Time a scan waits after the first query of a batch for more
+	 *            queries to arrive.
+	 * @param maxBatch
+	 *            Most queries searched in one scan.
+	 */
+	public KnnServer(LazyKnnSearch template, int k, long windowMillis, int maxBatch) {
+		this.template = template;
+		this.k = k;
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+		this.maxBatch = maxBatch;
+	}
+
+	/**
+	 * Loads the signature files of a signature directory, with their vector
+	 * files when re-ranking.
+	 */
+	public void loadSignatures(Path signatureDirectory, boolean rerank) throws IOException {
+		for (Path path : LazyKnnSearch.signatureFiles(signatureDirectory)) {
+			ResidentFile file = new ResidentFile();
+			file.name = path.toString();
+			file.bytes = Files.size(path);
+			if (BinarySignatureFile.isBinary(path)) {
+				file.binary = BinarySignatureFile.open(path);
+			} else {
+				file.table = SignatureTable.load(path, template.getSignatureLength());
+			}
+			if (rerank) {
+				file.vectors = VectorStore.open(VectorStore.vectorFileOf(path));
+			}
+			if (template.getMinMatches() > 0) {
+				file.summary = BucketSummary.openFor(path);
+				if (file.binary != null && file.summary != null && file.summary.size() != file.binary.size()) {
+					// Written for other rows, it cannot rule any out
+					file.summary = null;
+				}
+			}
+			files.add(file);
+		}
+	}
+
+	/**
+	 * Loads the indexes built by SignatureIndex, with the vector files of
+	 * their signature files when re-ranking. Queries are answered from the
+	 * indexes instead of the signature files.
+	 */
+	public void loadIndexes(Path indexDirectory, Path signatureDirectory, boolean rerank) throws IOException {
+		Map<Path, Path> vectorFiles = LazyKnnSearch.listFiles(signatureDirectory).stream()
+				.filter(VectorStore::isVectorFile)
+				.collect(Collectors.toMap(Path::getFileName, filePath -> filePath));
+		List<Path> paths = Files.walk(indexDirectory)
+				.filter(filePath -> Files.isRegularFile(filePath)
+						&& filePath.toString().endsWith(SignatureIndex.INDEX_SUFFIX))
+				.sorted().collect(Collectors.toList());
+		for (Path path : paths) {
+			ResidentIndex index = new ResidentIndex();
+			index.index = SignatureIndex.open(path);
+			Path vectorFile = vectorFiles.get(VectorStore.vectorFileOf(path).getFileName());
+			if (rerank && vectorFile != null) {
+				index.vectors = VectorStore.open(vectorFile);
+			}
+			indexes.add(index);
+		}
+	}
+
+	/**
+	 * Queues a search vector and returns its search once it has been
+	 * scanned.
+	 */
+	public CompletableFuture<LazyKnnSearch> submit(SparseVector vector) {
+		PendingQuery query = new PendingQuery(template.forVector(vector, k));
+		pending.add(query);
+		return query.result;
+	}
+
+	/**
+	 * Takes queued queries in batches and scans for them until interrupted.
+	 */
+	public void runBatches() {
+		List<PendingQuery> batch = new ArrayList<PendingQuery>();
+		try {
+			while (true) {
+				batch.add(pending.take());
+				long deadline = System.nanoTime() + windowNanos;
+				while (batch.size() < maxBatch) {
+					PendingQuery next = pending.poll(Math.max(0, deadline - System.nanoTime()),
+							TimeUnit.NANOSECONDS);
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+				search(batch);
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void search(List<PendingQuery> batch) {
+		try {
+			MultiProbeQuery[] queries = new MultiProbeQuery[batch.size()];
+			for (int q = 0; q < queries.length; q++) {
+				queries[q] = batch.get(q).search.getQuery();
+			}
+			NeighbourSink[] sinks = new NeighbourSink[batch.size()];
+			for (ResidentFile file : files) {
+				long start = System.nanoTime();
+				List<long[]> ranges = null;
+				if (file.summary != null) {
+					ranges = file.summary.candidateRanges(queries);
+					if (ranges.isEmpty()) {
+						continue;
+					}
+				}
+				for (int q = 0; q < sinks.length; q++) {
+					sinks[q] = new SearchStats.CountingSink(batch.get(q).search.fileSink());
+				}
+				long rows = 0;
+				long bytes = file.bytes;
+				if (file.binary != null && ranges != null) {
+					bytes = 0;
+					for (long[] range : ranges) {
+						file.binary.search(range[0], range[1], queries, sinks);
+						rows += range[1] - range[0];
+						bytes += file.binary.storedBytes(range[0], range[1]);
+					}
+				} else if (file.binary != null) {
+					file.binary.search(0, file.binary.size(), queries, sinks);
+					rows = file.binary.size();
+				} else {
+					file.table.search(queries, sinks);
+					rows = file.table.size();
+				}
+				long candidates = 0;
+				for (int q = 0; q < sinks.length; q++) {
+					SearchStats.CountingSink counted = (SearchStats.CountingSink) sinks[q];
+					batch.get(q).search.finishFile(counted.sink(), file.vectors);
+					candidates += counted.candidates;
+				}
+				// Rows are read once for the whole batch
+				stats.recordScan(file.name, bytes, rows, candidates, System.nanoTime() - start);
+			}
+			// Postings are looked up per query, an index gains nothing from
+			// batching
+			for (ResidentIndex index : indexes) {
+				for (PendingQuery query : batch) {
+					query.search.searchInIndex(index.index, index.vectors);
+				}
+			}
+			for (PendingQuery query : batch) {
+				stats.recordQuery(System.nanoTime() - query.submitted);
+				query.result.complete(query.search);
+			}
+		} catch (IOException | RuntimeException e) {
+			for (PendingQuery query : batch) {
+				query.result.completeExceptionally(e);
+			}
+		}
+	}
+
+	// Answers the queries of one client connection in order
+	private void serve(Socket socket) {
+		try (Socket client = socket;
+				BufferedReader in = new BufferedReader(new InputStreamReader(
+						client.getInputStream(), StandardCharsets.UTF_8));
+				PrintWriter out = new PrintWriter(new OutputStreamWriter(
+						client.getOutputStream(), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.equals(STATS_REQUEST)) {
+					stats.writeReport(out);
+					out.println();
+					out.flush();
+					continue;
+				}
+				try {
+					SparseVector vector = new SparseVector();
+					vector.parse(line, '\t');
+					submit(vector).get().getNeighbours(k, out);
+				} catch (ExecutionException e) {
+					out.println("ERROR\t" + e.getCause());
+				} catch (RuntimeException e) {
+					out.println("ERROR\t" + e);
+				}
+				out.println();
+				out.flush();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Accepts client connections on the given port of the loopback address
+	 * until the process ends.
+	 */
+	public void listen(int port) throws IOException {
+		Thread scanner = new Thread(this::runBatches, "knn-scan");
+		scanner.setDaemon(true);
+		scanner.start();
+		ExecutorService clients = Executors.newCachedThreadPool();
+		try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+			System.out.println("Listening on " + server.getLocalSocketAddress());
+			while (true) {
+				Socket client = server.accept();
+				clients.execute(() -> serve(client));
+			}
+		} finally {
+			clients.shutdownNow();
+			scanner.interrupt();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (ResidentFile file : files) {
+			if (file.binary != null) {
+				file.binary.close();
+			}
+			if (file.vectors != null) {
+				file.vectors.close();
+			}
+		}
+		for (ResidentIndex index : indexes) {
+			if (index.vectors != null) {
+				index.vectors.close();
+			}
+		}
+	}
+
+	public static void main(String[] args) throws ClassNotFoundException, IOException {
+		if (args.length < 2) {
+			System.err.println(
+					"Usage : KnnServer hash_function_file signature_directory [-k knn] [-port port] [-i index directory] [-p probes] [-m min matches] [-r rerank] [-cos] [-w batch window ms] [-b max batch]");
+			System.exit(1);
+		}
+		int knn = 10;
+		int port = DEFAULT_PORT;
+		String indexDirectory = null;
+		int probes = 0;
+		int minMatches = 0;
+		int rerank = 0;
+		boolean cosine = false;
+		long window = 2;
+		int maxBatch = 64;
+		for (int i = 2; i < args.length; i++) {
+			switch (args[i]) {
+				case "-k":
+				case "-knn":
+					knn = Integer.parseInt(args[++i]);
+					break;
+				case "-port":
+					port = Integer.parseInt(args[++i]);
+					break;
+				case "-i":
+					indexDirectory = args[++i];
+					break;
+				case "-p":
+					probes = Integer.parseInt(args[++i]);
+					break;
+				case "-m":
+					minMatches = Integer.parseInt(args[++i]);
+					break;
+				case "-r":
+					rerank = Integer.parseInt(args[++i]);
+					break;
+				case "-cos":
+					cosine = true;
+					break;
+				case "-w":
+					window = Long.parseLong(args[++i]);
+					break;
+				case "-b":
+					maxBatch = Integer.parseInt(args[++i]);
+					break;
+			}
+		}
+		if (knn <= 0) {
+			System.err.println("k must be positive");
+			System.exit(1);
+		}
+		LazyKnnSearch template = new LazyKnnSearch(args[0]);
+		template.setProbes(probes);
+		template.setMinMatches(minMatches);
+		template.setRerank(rerank, cosine);
+		Path signatureDirectory = Paths.get(args[1]);
+		try (KnnServer server = new KnnServer(template, knn, window, maxBatch)) {
+			if (indexDirectory != null) {
+				server.loadIndexes(Paths.get(indexDirectory), signatureDirectory, rerank > 0);
+			} else {
+				server.loadSignatures(signatureDirectory, rerank > 0);
+			}
+			server.listen(port);
+		}
+	}
+
+	private static class PendingQuery {
+		final LazyKnnSearch							search;
+		final CompletableFuture<LazyKnnSearch>	result	= new CompletableFuture<LazyKnnSearch>();
+		final long								submitted	= System.nanoTime();
+
+		PendingQuery(LazyKnnSearch search) {
+			this.search = search;
+		}
+	}
+
+	private static class ResidentFile {
+		String				name;
+		long				bytes;
+		// One of binary and table is set
+		BinarySignatureFile	binary;
+		SignatureTable		table;
+		// Set when re-ranking
+		VectorStore			vectors;
+		// Set when searching for a minimum number of matches
+		BucketSummary		summary;
+	}
+
+	private static class ResidentIndex {
+		SignatureIndex	index;
+		// Set when re-ranking
+		VectorStore		vectors;
+	}
+}
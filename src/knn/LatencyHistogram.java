@@ -0,0 +1,66 @@
+package knn;
+
+/**
+ * Histogram of latencies in nanoseconds with a relative precision of about
+ * 6%, in the manner of an HDR histogram: every power of two is cut into 16
+ * linear sub-buckets, so the whole range of a long fits in about a thousand
+ * counts and recording is a few shifts.
+ */
+public class LatencyHistogram {
+	private static final int	SUB_BUCKET_BITS	= 4;
+	private static final int	SUB_BUCKETS		= 1 << SUB_BUCKET_BITS;
+
+	private final long[]		counts			= new long[(64 + 1) * SUB_BUCKETS];
+	private long				count;
+	private long				max;
+	private long				sum;
+
+	public synchronized void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts[index(value)]++;
+		count++;
+		sum += value;
+		max = Math.max(max, value);
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	public synchronized long getMax() {
+		return max;
+	}
+
+	public synchronized double getMean() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * @return The highest value of the bucket holding the given percentile
+	 *         of the recorded values, 0 when nothing was recorded.
+	 */
+	public synchronized long percentile(double percentile) {
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(max, highestValue(i));
+			}
+		}
+		return 0;
+	}
+
+	// Values below 2 * SUB_BUCKETS are counted exactly, larger ones by
+	// their top SUB_BUCKET_BITS + 1 bits
+	private static int index(long value) {
+		int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+		return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+	}
+
+	private static long highestValue(int index) {
+		int shift = Math.max(0, (index >> SUB_BUCKET_BITS) - 1);
+		long subBucket = index - ((long) shift << SUB_BUCKET_BITS);
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
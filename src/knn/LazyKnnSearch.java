@@ -8,15 +8,127 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+
+import lsh.EuclideanHashFamily;
+import lsh.HashProjection;
+import lsh.SparseVector;
 
 public class LazyKnnSearch {
-	private float[][] hashFunction;
+	// Largest byte range of a file scanned by one worker
+	public static final long SPLIT_SIZE = 64L << 20;
+
+	private HashProjection hashFunction;
 	private int bucketWidth;
-	private String[] searchSignature;
+	private int[] searchBuckets;
+	private double[] searchProjections;
+	private MultiProbeQuery query;
+	private int probes;
+	// Fewest positions a candidate matches, 0 for any row
+	private int minMatches;
 	private ArrayList<DistanceEntryPair> knnDistances = new ArrayList<DistanceEntryPair>();
+	// Streaming top-k mode, null when every row is collected
+	private NeighbourHeap topK;
+	private int k;
+	// Number of LSH candidates per file re-scored by exact distance, 0 to
+	// rank by signature distance only
+	private int rerank;
+	private boolean cosine;
+	private SparseVector searchVector;
+	// The search vector indexed by feature index
+	private double[] denseSearchVector;
+	private double searchSquaredNorm;
+	private List<RescoredEntry> rescored = new ArrayList<RescoredEntry>();
+	// Scan statistics, null when not collected
+	private SearchStats stats;
+
+	/**
+	 * True for the signature files under a signature directory. Job
+	 * markers, files or directories whose name starts with "_" or ".",
+	 * vector files and bucket summaries are skipped.
+	 */
+	public static boolean isSignatureFile(Path root, Path file) {
+		if (!Files.isRegularFile(file) || VectorStore.isVectorFile(file)
+				|| BucketSummary.isSummaryFile(file)) {
+			return false;
+		}
+		for (Path name : root.relativize(file)) {
+			if (name.toString().startsWith("_")
+					|| name.toString().startsWith(".")) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The regular files under a directory, sorted. Files and directories
+	 * deleted during the walk, such as the segments SegmentCompactor removes
+	 * next to a search, are left out instead of failing it.
+	 */
+	public static List<Path> listFiles(Path root) throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile()) {
+					files.add(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+				if (e instanceof NoSuchFileException) {
+					return FileVisitResult.CONTINUE;
+				}
+				throw e;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				if (e == null || e instanceof NoSuchFileException) {
+					return FileVisitResult.CONTINUE;
+				}
+				throw e;
+			}
+		});
+		Collections.sort(files);
+		return files;
+	}
+
+	/**
+	 * The signature files under a signature directory, sorted.
+	 */
+	public static List<Path> signatureFiles(Path root) throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		for (Path file : listFiles(root)) {
+			if (isSignatureFile(root, file)) {
+				files.add(file);
+			}
+		}
+		return files;
+	}
 
 	public LazyKnnSearch(String hashFile, String searchFile)
 			throws ClassNotFoundException, IOException {
@@ -24,33 +136,155 @@ public class LazyKnnSearch {
 		hashSearchFile(searchFile);
 	}
 
+	/**
+	 * Creates a search without a search vector that only loads the hash
+	 * function, for a server answering many queries. Queries are searched
+	 * with {@link #forVector(SparseVector, int)}.
+	 */
+	public LazyKnnSearch(String hashFile) throws ClassNotFoundException,
+	IOException {
+		loadHashFunction(hashFile);
+	}
+
+	private LazyKnnSearch() {
+	}
+
+	/**
+	 * Creates a top-k search for the given vector sharing the hash function,
+	 * probes, minimum matches and re-ranking of this search.
+	 */
+	public LazyKnnSearch forVector(SparseVector vector, int k) {
+		LazyKnnSearch search = new LazyKnnSearch();
+		search.hashFunction = hashFunction;
+		search.bucketWidth = bucketWidth;
+		search.minMatches = minMatches;
+		search.k = k;
+		search.topK = new NeighbourHeap(k);
+		search.hashSearchVector(vector);
+		search.setProbes(probes);
+		search.setRerank(rerank, cosine);
+		return search;
+	}
+
+	public int getSignatureLength() {
+		return hashFunction.getSignatureLength();
+	}
+
+	/**
+	 * Creates a search that only keeps the k nearest rows seen so far
+	 * instead of every row, so memory stays O(k).
+	 */
+	public LazyKnnSearch(String hashFile, String searchFile, int k)
+			throws ClassNotFoundException, IOException {
+		this(hashFile, searchFile);
+		if (k <= 0) {
+			throw new IllegalArgumentException("k must be positive, got " + k);
+		}
+		this.k = k;
+		this.topK = new NeighbourHeap(k);
+	}
+
 	private void hashSearchFile(String searchFile) throws IOException {
 		// Read in and hash search vector
 		BufferedReader br = new BufferedReader(new FileReader(new File(
 				searchFile)));
-		String[] searchVector = br.readLine().split("\t");
+		SparseVector vector = new SparseVector();
+		vector.parse(br.readLine(), '\t');
 		br.close();
-		this.searchSignature = calculateSignature(searchVector);
+		hashSearchVector(vector);
 	}
 
-	private int hashed(String[] sparseVect, float[] hash, int bucketWidth) {
-		double scalar = 0;
-		for (int i = 0; i < sparseVect.length; i++) {
-			String[] entry = sparseVect[i].split(":");
-			int pos = Integer.parseInt(entry[0]);
-			double val = Double.parseDouble(entry[1]);
-			scalar += val * hash[pos - 1];
+	private void hashSearchVector(SparseVector vector) {
+		this.searchVector = vector;
+		int sigLength = hashFunction.getSignatureLength();
+		this.searchProjections = new double[sigLength];
+		this.searchBuckets = new int[sigLength];
+		hashFunction.signature(searchVector, bucketWidth, searchProjections, searchBuckets);
+		this.query = new MultiProbeQuery(searchBuckets);
+		query.setMinMatches(minMatches);
+	}
+
+	/**
+	 * Turns on multi-probe search: besides its own buckets, the query
+	 * matches the given number of neighbouring buckets whose edges its
+	 * projections lie closest to.
+	 */
+	public void setProbes(int probes) {
+		this.probes = probes;
+		if (searchBuckets == null) {
+			return;
+		}
+		if (probes > 0) {
+			this.query = new MultiProbeQuery(searchBuckets, searchProjections,
+					bucketWidth, probes);
+		} else {
+			this.query = new MultiProbeQuery(searchBuckets);
 		}
-		return (int) (scalar / bucketWidth);
+		query.setMinMatches(minMatches);
+	}
 
+	/**
+	 * Only rows matching at least the given number of positions are
+	 * neighbours. Files and blocks whose bucket summary rules out such a
+	 * row are skipped without being read, so a selective search reads a
+	 * fraction of the signatures.
+	 */
+	public void setMinMatches(int minMatches) {
+		this.minMatches = minMatches;
+		if (query != null) {
+			query.setMinMatches(minMatches);
+		}
 	}
 
-	public String[] calculateSignature(String[] searchVector) {
-		int sigLength = hashFunction.length;
+	public int getMinMatches() {
+		return minMatches;
+	}
+
+	/**
+	 * Turns on re-ranking: the given number of nearest candidates by
+	 * signature distance of every signature file are looked up in the
+	 * vector file written alongside it, and the neighbours are ranked by
+	 * their exact distance to the search vector instead.
+	 *
+	 * @param cosine
+	 *            Rank by cosine distance instead of Euclidean distance.
+	 */
+	public void setRerank(int candidates, boolean cosine) {
+		this.rerank = candidates;
+		this.cosine = cosine;
+		if (candidates <= 0 || searchVector == null) {
+			return;
+		}
+		int maxIndex = 0;
+		for (int i = 0; i < searchVector.size(); i++) {
+			maxIndex = Math.max(maxIndex, searchVector.indices()[i]);
+		}
+		this.denseSearchVector = new double[maxIndex + 1];
+		this.searchSquaredNorm = 0;
+		for (int i = 0; i < searchVector.size(); i++) {
+			double value = searchVector.values()[i];
+			denseSearchVector[searchVector.indices()[i]] += value;
+		}
+		for (double value : denseSearchVector) {
+			searchSquaredNorm += value * value;
+		}
+	}
+
+	/**
+	 * Collects the scan throughput and candidate counts of every file
+	 * searched into the given statistics.
+	 */
+	public void setStats(SearchStats stats) {
+		this.stats = stats;
+	}
+
+	public String[] calculateSignature(SparseVector searchVector) {
+		int sigLength = hashFunction.getSignatureLength();
+		int[] buckets = new int[sigLength];
+		hashFunction.signature(searchVector, bucketWidth, new double[sigLength], buckets);
 		String[] signature = new String[sigLength];
 		for (int h = 0; h < sigLength; h++) {
-			signature[h] = ""
-					+ hashed(searchVector, hashFunction[h], bucketWidth);
+			signature[h] = "" + buckets[h];
 		}
 		return signature;
 	}
@@ -60,37 +294,449 @@ public class LazyKnnSearch {
 		// Read in hash function
 		ObjectInputStream ois = new ObjectInputStream(new FileInputStream(
 				new File(fileName)));
-		this.hashFunction = (float[][]) ois.readObject();
-		this.bucketWidth = ois.readInt();
+		Object saved = ois.readObject();
+		if (saved instanceof EuclideanHashFamily) {
+			EuclideanHashFamily family = (EuclideanHashFamily) saved;
+			// Large projections are mapped from the same node-local file as
+			// the hashing tasks
+			this.hashFunction = family.projections(new Configuration());
+			this.bucketWidth = family.getBucketWidth();
+		} else {
+			// Hash files written before the family was defined by a seed
+			// hold the whole matrix
+			this.hashFunction = HashProjection.fromRows((float[][]) saved);
+			this.bucketWidth = ois.readInt();
+		}
 		ois.close();
 	}
 
 	public void searchInFile(Path path) throws IOException {
+		long start = System.nanoTime();
+		NeighbourSink sink = fileSink();
+		NeighbourSink scanned = countedSink(sink);
+		long bytes;
+		try {
+			bytes = scanFile(path, scanned);
+			if (rerank > 0) {
+				rescore((NeighbourHeap) sink, VectorStore.vectorFileOf(path));
+			}
+		} catch (NoSuchFileException e) {
+			// Deleted by a compaction since it was listed, its rows are in
+			// the merged segment
+			return;
+		}
+		if (stats != null) {
+			recordScan(path, bytes, scanned, start);
+		}
+	}
+
+	// Scans a file, or only the rows its bucket summary cannot rule out,
+	// and returns the bytes scanned
+	private long scanFile(Path path, NeighbourSink sink) throws IOException {
+		if (BinarySignatureFile.isBinary(path)) {
+			try (BinarySignatureFile file = BinarySignatureFile.open(path)) {
+				List<long[]> ranges = candidateRanges(path, file);
+				if (ranges == null) {
+					file.search(0, file.size(), query, sink);
+					return Files.size(path);
+				}
+				long bytes = 0;
+				for (long[] range : ranges) {
+					file.search(range[0], range[1], query, sink);
+					bytes += file.storedBytes(range[0], range[1]);
+				}
+				return bytes;
+			}
+		}
+		if (skipsFile(path)) {
+			return 0;
+		}
 		BufferedReader br = new BufferedReader(new FileReader(new File(
 				path.toUri())));
 		String lshEntry;
-		while ((lshEntry = br.readLine()) != null) {
-			int dist = getHammingDistance(getSignature(lshEntry));
-			knnDistances.add(new DistanceEntryPair(dist, getEntry(lshEntry)));
+		try {
+			long row = 0;
+			while ((lshEntry = br.readLine()) != null) {
+				int dist = getHammingDistance(lshEntry);
+				if (sink.accepts(dist) && query.isCandidate(dist)) {
+					sink.add(dist, getEntry(lshEntry), row);
+				}
+				row++;
+			}
+		} finally {
+			br.close();
+		}
+		return Files.size(path);
+	}
+
+	/**
+	 * Rows [first, last) of a binary file that may hold a candidate, or
+	 * null to scan the whole file: when any row is a candidate, or the file
+	 * has no summary or one that does not match it.
+	 */
+	private List<long[]> candidateRanges(Path path, BinarySignatureFile file)
+			throws IOException {
+		if (query.getMinMatches() <= 0) {
+			return null;
+		}
+		BucketSummary summary = BucketSummary.openFor(path);
+		if (summary == null || summary.size() != file.size()) {
+			return null;
+		}
+		return summary.candidateRanges(query);
+	}
+
+	// True if the bucket summary of a text file rules out all of its rows.
+	// Rows of a text file are not at known offsets, so it is scanned whole
+	// otherwise.
+	private boolean skipsFile(Path path) throws IOException {
+		if (query.getMinMatches() <= 0) {
+			return false;
 		}
+		BucketSummary summary = BucketSummary.openFor(path);
+		return summary != null && summary.candidateRanges(query).isEmpty();
 	}
 
+	// Looks up the candidates in a vector file and keeps them with their
+	// exact distance to the search vector
+	private void rescore(NeighbourHeap candidates, Path vectorFile)
+			throws IOException {
+		if (candidates.size() == 0) {
+			return;
+		}
+		try (VectorStore store = VectorStore.open(vectorFile)) {
+			rescore(candidates, store);
+		}
+	}
 
-	private int getHammingDistance(String[] entry) {
+	private void rescore(NeighbourHeap candidates, VectorStore store) {
+		int[] distances = new int[candidates.size()];
+		String[] entries = new String[candidates.size()];
+		long[] rows = new long[candidates.size()];
+		candidates.drainSorted(distances, entries, rows);
+		for (int i = 0; i < rows.length; i++) {
+			double dot = store.dot(rows[i], denseSearchVector);
+			double squaredNorm = store.squaredNorm(rows[i]);
+			double distance;
+			if (cosine) {
+				double norms = Math.sqrt(searchSquaredNorm * squaredNorm);
+				distance = norms == 0 ? 1 : 1 - dot / norms;
+			} else {
+				distance = Math.sqrt(Math.max(0, searchSquaredNorm
+						+ squaredNorm - 2 * dot));
+			}
+			synchronized (rescored) {
+				rescored.add(new RescoredEntry(distance, entries[i]));
+			}
+		}
+	}
+
+	MultiProbeQuery getQuery() {
+		return query;
+	}
+
+	// Sink for the rows of one file scanned by the caller: the file's
+	// re-ranking candidates, or the neighbours themselves
+	NeighbourSink fileSink() {
+		if (rerank > 0) {
+			return new NeighbourHeap(rerank);
+		}
+		return sink();
+	}
+
+	// Completes a file scanned into fileSink(), re-ranking its candidates
+	// with the file's open vector store
+	void finishFile(NeighbourSink fileSink, VectorStore store) {
+		if (rerank > 0) {
+			rescore((NeighbourHeap) fileSink, store);
+		}
+	}
+
+	/**
+	 * Searches the given files on a pool of worker threads. Files larger
+	 * than {@link #SPLIT_SIZE} are cut into byte ranges. Every range is
+	 * scanned into its own top-k heap and the heaps are merged once all
+	 * workers are done, so workers share no mutable state.
+	 */
+	public void searchInFiles(List<Path> paths, int threads) throws IOException {
+		if (rerank > 0) {
+			rerankInFiles(paths, threads);
+			return;
+		}
+		if (topK == null) {
+			throw new IllegalStateException("Parallel search needs a bounded k");
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<NeighbourHeap>> partials = new ArrayList<Future<NeighbourHeap>>();
+		List<BinarySignatureFile> binaryFiles = new ArrayList<BinarySignatureFile>();
+		try {
+			for (Path path : paths) {
+				if (BinarySignatureFile.isBinary(path)) {
+					// Binary files are split on record boundaries, and
+					// compressed ones on block boundaries. Only the rows
+					// the summary cannot rule out are scanned.
+					BinarySignatureFile file;
+					List<long[]> ranges;
+					try {
+						file = BinarySignatureFile.open(path);
+						binaryFiles.add(file);
+						ranges = candidateRanges(path, file);
+					} catch (NoSuchFileException e) {
+						// Deleted by a compaction since it was listed
+						continue;
+					}
+					if (ranges == null) {
+						ranges = Collections.singletonList(new long[] { 0, file.size() });
+					}
+					long step = file.splitRows(SPLIT_SIZE);
+					for (long[] range : ranges) {
+						for (long first = range[0]; first < range[1]; first += step) {
+							long rangeFirst = first;
+							long rangeLast = Math.min(first + step, range[1]);
+							partials.add(pool.submit(() -> {
+								long scanStart = System.nanoTime();
+								NeighbourHeap heap = new NeighbourHeap(k);
+								NeighbourSink sink = countedSink(heap);
+								file.search(rangeFirst, rangeLast, query, sink);
+								recordScan(path, file.storedBytes(rangeFirst, rangeLast), sink, scanStart);
+								return heap;
+							}));
+						}
+					}
+					continue;
+				}
+				long size;
+				try {
+					if (skipsFile(path)) {
+						continue;
+					}
+					size = Files.size(path);
+				} catch (NoSuchFileException e) {
+					continue;
+				}
+				for (long start = 0; start < size; start += SPLIT_SIZE) {
+					long rangeStart = start;
+					long rangeEnd = Math.min(start + SPLIT_SIZE, size);
+					partials.add(pool.submit(() -> {
+						long scanStart = System.nanoTime();
+						NeighbourHeap heap = new NeighbourHeap(k);
+						NeighbourSink sink = countedSink(heap);
+						try {
+							searchInRange(path, rangeStart, rangeEnd, sink);
+						} catch (NoSuchFileException e) {
+							return heap;
+						}
+						recordScan(path, rangeEnd - rangeStart, sink, scanStart);
+						return heap;
+					}));
+				}
+			}
+			for (Future<NeighbourHeap> partial : partials) {
+				topK.addAll(partial.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Search interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Search failed", e.getCause());
+		} finally {
+			pool.shutdownNow();
+			for (BinarySignatureFile file : binaryFiles) {
+				file.close();
+			}
+		}
+	}
+
+	// Rows of a byte range of a text file are not numbered, so with
+	// re-ranking every file is one unit of work
+	private void rerankInFiles(List<Path> paths, int threads) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<?>> tasks = new ArrayList<Future<?>>();
+		try {
+			for (Path path : paths) {
+				tasks.add(pool.submit(() -> {
+					searchInFile(path);
+					return null;
+				}));
+			}
+			for (Future<?> task : tasks) {
+				task.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Search interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Search failed", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	// Scans the rows starting in (start, end] of a file, plus the row at 0
+	// for the first range. A row crossing the end of a range belongs to
+	// that range, the same way Hadoop splits text input.
+	private void searchInRange(Path path, long start, long end,
+			NeighbourSink heap) throws IOException {
+		try (FileChannel channel = FileChannel.open(path,
+				StandardOpenOption.READ)) {
+			channel.position(start);
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+			buffer.flip();
+			byte[] line = new byte[256];
+			long pos = start;
+			boolean skipFirst = start != 0;
+			while (pos <= end) {
+				int length = 0;
+				boolean newline = false;
+				while (!newline) {
+					if (!buffer.hasRemaining()) {
+						buffer.clear();
+						if (channel.read(buffer) <= 0) {
+							buffer.limit(0);
+							break;
+						}
+						buffer.flip();
+					}
+					byte b = buffer.get();
+					if (b == '\n') {
+						newline = true;
+					} else {
+						if (length == line.length) {
+							line = Arrays.copyOf(line, length * 2);
+						}
+						line[length++] = b;
+					}
+				}
+				if (!newline && length == 0) {
+					break;
+				}
+				pos += length + (newline ? 1 : 0);
+				if (skipFirst) {
+					skipFirst = false;
+					continue;
+				}
+				if (length > 0 && line[length - 1] == '\r') {
+					length--;
+				}
+				String lshEntry = new String(line, 0, length,
+						StandardCharsets.UTF_8);
+				int dist = getHammingDistance(lshEntry);
+				if (heap.accepts(dist) && query.isCandidate(dist)) {
+					heap.add(dist, getEntry(lshEntry));
+				}
+			}
+		}
+	}
+
+	// The sink counting into the statistics when they are collected
+	private NeighbourSink countedSink(NeighbourSink sink) {
+		return stats == null ? sink : new SearchStats.CountingSink(sink);
+	}
+
+	private void recordScan(Path path, long bytes, NeighbourSink sink,
+			long start) {
+		if (stats != null) {
+			SearchStats.CountingSink counted = (SearchStats.CountingSink) sink;
+			stats.recordScan(path.toString(), bytes, counted.rows,
+					counted.candidates, System.nanoTime() - start);
+		}
+	}
+
+	// Only entries sharing at least one bucket with the search signature
+	// are read from the index
+	public void searchInIndex(SignatureIndex index) throws IOException {
+		searchInIndex(index, (Path) null);
+	}
+
+	/**
+	 * Same as {@link #searchInIndex(SignatureIndex)}, re-ranking with the
+	 * vectors of the given vector file when re-ranking is on.
+	 */
+	public void searchInIndex(SignatureIndex index, Path vectorFile)
+			throws IOException {
+		if (rerank > 0 && vectorFile != null) {
+			NeighbourHeap candidates = new NeighbourHeap(rerank);
+			scanIndex(index, candidates);
+			rescore(candidates, vectorFile);
+		} else {
+			scanIndex(index, sink());
+		}
+	}
+
+	/**
+	 * Same as {@link #searchInIndex(SignatureIndex, Path)} with a vector
+	 * store kept open by the caller, such as a server answering many
+	 * queries from the same index.
+	 */
+	public void searchInIndex(SignatureIndex index, VectorStore vectors)
+			throws IOException {
+		if (rerank > 0 && vectors != null) {
+			NeighbourHeap candidates = new NeighbourHeap(rerank);
+			scanIndex(index, candidates);
+			rescore(candidates, vectors);
+		} else {
+			scanIndex(index, sink());
+		}
+	}
+
+	private void scanIndex(SignatureIndex index, NeighbourSink sink)
+			throws IOException {
+		if (index.getSignatureLength() != searchBuckets.length) {
+			throw new IOException("Index signature length does not match the hash function");
+		}
+		for (Map.Entry<Integer, Integer> match : index.countMatches(query).entrySet()) {
+			int dist = searchBuckets.length - match.getValue();
+			if (sink.accepts(dist) && query.isCandidate(dist)) {
+				// Entry ids of the index are the rows of its signature file
+				sink.add(dist, index.getEntry(match.getKey()), match.getKey());
+			}
+		}
+	}
+
+	// The top-k heap, or a sink collecting every row
+	private NeighbourSink sink() {
+		if (topK != null) {
+			return topK;
+		}
+		return new NeighbourSink() {
+			@Override
+			public boolean accepts(int distance) {
+				return true;
+			}
+
+			@Override
+			public void add(int distance, String entry) {
+				knnDistances.add(new DistanceEntryPair(distance, entry));
+			}
+		};
+	}
+
+	// Reads the comma-separated signature at the start of the row in place,
+	// without splitting the row, and counts the positions the query does not
+	// match
+	private int getHammingDistance(String lshEntry) {
 		int dist = 0;
-		for (int i = 0; i < searchSignature.length; i++) {
-			if (!searchSignature[i].equals(entry[i])) {
+		int pos = 0;
+		for (int i = 0; i < searchBuckets.length; i++) {
+			boolean negative = pos < lshEntry.length() && lshEntry.charAt(pos) == '-';
+			if (negative) {
+				pos++;
+			}
+			int bucket = 0;
+			char c;
+			while (pos < lshEntry.length() && (c = lshEntry.charAt(pos)) != ','
+					&& c != '\t') {
+				bucket = bucket * 10 + (c - '0');
+				pos++;
+			}
+			if (!query.matches(i, negative ? -bucket : bucket)) {
 				dist++;
 			}
+			pos++;
 		}
 		return dist;
 	}
 
-	private String[] getSignature(String lshEntry) {
-		return lshEntry.substring(0, lshEntry.indexOf('\t'))
-				.split(",");
-	}
-
 	private String getEntry(String lshEntry) {
 		return lshEntry
 				.substring(lshEntry.indexOf('\t') + 1, lshEntry.length());
@@ -99,13 +745,36 @@ public class LazyKnnSearch {
 
 	// Writes k number of nearest neighbours into the output file
 	public void getNeighbours(int k, File output) throws IOException {
-		Collections.sort(knnDistances);
 		PrintWriter pw = new PrintWriter(new FileWriter(output));
-		for(int i=0;i<k;i++) {
+		getNeighbours(k, pw);
+		pw.close();
+	}
+
+	// Prints k number of nearest neighbours, one per line
+	public void getNeighbours(int k, PrintWriter pw) {
+		if (rerank > 0) {
+			Collections.sort(rescored);
+			for (int i = 0; i < Math.min(k, rescored.size()); i++) {
+				pw.print(rescored.get(i).distance + "\t");
+				pw.println(rescored.get(i).entry);
+			}
+			return;
+		}
+		if (topK != null) {
+			int[] distances = new int[topK.size()];
+			String[] entries = new String[topK.size()];
+			topK.drainSorted(distances, entries);
+			for (int i = 0; i < Math.min(k, distances.length); i++) {
+				pw.print(distances[i] + "\t");
+				pw.println(entries[i]);
+			}
+			return;
+		}
+		Collections.sort(knnDistances);
+		for(int i=0;i<Math.min(k, knnDistances.size());i++) {
 			pw.print(knnDistances.get(i).distance + "\t");
 			pw.println(knnDistances.get(i).entry);
 		}
-		pw.close();
 	}
 	private static class DistanceEntryPair implements
 	Comparable<DistanceEntryPair> {
@@ -123,5 +792,20 @@ public class LazyKnnSearch {
 		}
 	}
 
+	private static class RescoredEntry implements Comparable<RescoredEntry> {
+		public double distance;
+		public String entry;
+
+		public RescoredEntry(double distance, String entry) {
+			this.distance = distance;
+			this.entry = entry;
+		}
+
+		@Override
+		public int compareTo(RescoredEntry other) {
+			return Double.compare(this.distance, other.distance);
+		}
+	}
+
 
 }
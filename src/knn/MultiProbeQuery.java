@@ -0,0 +1,116 @@
+package knn;
+
+import java.util.Arrays;
+
+/**
+ * Search signature that also accepts neighbouring buckets. Quantizing a
+ * projection into a bucket loses how close the query was to the bucket's
+ * edge, and a near neighbour just across that edge misses the position.
+ * Each position has two neighbouring buckets, one on either side; all of
+ * them are ranked by how close the query's projection lies to the shared
+ * edge, and the closest ones, up to the probe budget, are accepted as
+ * matches as well.
+ *
+ * Accepted buckets of a position always form a range, so a match is two
+ * comparisons.
+ */
+public class MultiProbeQuery {
+	private final int[]	buckets;
+	private final int[]	lowest;
+	private final int[]	highest;
+	// Largest distance of a candidate
+	private int			maxDistance;
+
+	/**
+	 * Exact search: only the query's own buckets match.
+	 */
+	public MultiProbeQuery(int[] buckets) {
+		this.buckets = buckets;
+		this.lowest = buckets.clone();
+		this.highest = buckets.clone();
+		this.maxDistance = buckets.length;
+	}
+
+	/**
+	 * @param buckets
+	 *            Bucket of each signature position of the query.
+	 * @param projections
+	 *            Projection of each position the buckets were cut from.
+	 * @param bucketWidth
+	 *            Width of a bucket on each projection.
+	 * @param probes
+	 *            Number of neighbouring buckets to accept, at most twice the
+	 *            signature length.
+	 */
+	public MultiProbeQuery(int[] buckets, double[] projections, int bucketWidth, int probes) {
+		this(buckets);
+		int signatureLength = buckets.length;
+		// Distance to the lower edge of position h is at 2h, to the upper
+		// edge at 2h + 1, both in units of the bucket width
+		double[] edgeDistances = new double[2 * signatureLength];
+		Integer[] order = new Integer[2 * signatureLength];
+		for (int h = 0; h < signatureLength; h++) {
+			double scaled = projections[h] / bucketWidth;
+			// Buckets are cut by truncation, so bucket 0 spans (-1, 1),
+			// positive buckets [b, b + 1) and negative buckets (b - 1, b]
+			int bucket = buckets[h];
+			int lowerEdge = bucket > 0 ? bucket : bucket - 1;
+			int upperEdge = bucket < 0 ? bucket : bucket + 1;
+			edgeDistances[2 * h] = scaled - lowerEdge;
+			edgeDistances[2 * h + 1] = upperEdge - scaled;
+			order[2 * h] = 2 * h;
+			order[2 * h + 1] = 2 * h + 1;
+		}
+		Arrays.sort(order, (a, b) -> Double.compare(edgeDistances[a], edgeDistances[b]));
+		for (int p = 0; p < Math.min(probes, order.length); p++) {
+			int h = order[p] >> 1;
+			if ((order[p] & 1) == 0) {
+				lowest[h] = buckets[h] - 1;
+			} else {
+				highest[h] = buckets[h] + 1;
+			}
+		}
+	}
+
+	public int getSignatureLength() {
+		return buckets.length;
+	}
+
+	/**
+	 * @return The query's own bucket at a position.
+	 */
+	public int bucket(int position) {
+		return buckets[position];
+	}
+
+	// First and last bucket accepted at a position
+	public int lowest(int position) {
+		return lowest[position];
+	}
+
+	public int highest(int position) {
+		return highest[position];
+	}
+
+	public boolean matches(int position, int bucket) {
+		return bucket >= lowest[position] && bucket <= highest[position];
+	}
+
+	/**
+	 * Only rows matching at least the given number of positions are
+	 * candidates. The others are not offered to the sinks, and files or
+	 * blocks whose bucket summary rules such a row out are not scanned.
+	 */
+	public void setMinMatches(int minMatches) {
+		this.maxDistance = buckets.length - Math.max(0, minMatches);
+	}
+
+	public int getMinMatches() {
+		return buckets.length - maxDistance;
+	}
+
+	// True if a row at this distance is a candidate
+	public boolean isCandidate(int distance) {
+		return distance <= maxDistance;
+	}
+}
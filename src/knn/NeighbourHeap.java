@@ -0,0 +1,125 @@
+package knn;
+
+/**
+ * Bounded max-heap keeping the k entries with the smallest distances seen
+ * so far. Distances are kept in a primitive array, and callers should check
+ * {@link #accepts(int)} before building the entry string so that rejected
+ * rows cost no allocation.
+ */
+class NeighbourHeap implements NeighbourSink {
+	private final int[] distances;
+	private final String[] entries;
+	// Row of each entry in its file, -1 when not known
+	private final long[] rows;
+	private int size;
+
+	public NeighbourHeap(int k) {
+		this.distances = new int[k];
+		this.entries = new String[k];
+		this.rows = new long[k];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// True if an entry at this distance would be kept, never for k = 0
+	@Override
+	public boolean accepts(int distance) {
+		return size < distances.length || (size > 0 && distance < distances[0]);
+	}
+
+	@Override
+	public void add(int distance, String entry) {
+		add(distance, entry, -1);
+	}
+
+	@Override
+	public void add(int distance, String entry, long row) {
+		if (size < distances.length) {
+			distances[size] = distance;
+			entries[size] = entry;
+			rows[size] = row;
+			siftUp(size++);
+		} else if (size > 0 && distance < distances[0]) {
+			distances[0] = distance;
+			entries[0] = entry;
+			rows[0] = row;
+			siftDown(0);
+		}
+	}
+
+	public void addAll(NeighbourHeap other) {
+		for (int i = 0; i < other.size; i++) {
+			add(other.distances[i], other.entries[i], other.rows[i]);
+		}
+	}
+
+	/**
+	 * Copies the kept entries into the given arrays in ascending order of
+	 * distance. The heap itself is left unchanged.
+	 */
+	public void drainSorted(int[] sortedDistances, String[] sortedEntries) {
+		drainSorted(sortedDistances, sortedEntries, new long[size]);
+	}
+
+	// Same as drainSorted(int[], String[]), also copying the rows
+	public void drainSorted(int[] sortedDistances, String[] sortedEntries,
+			long[] sortedRows) {
+		NeighbourHeap copy = new NeighbourHeap(distances.length);
+		copy.addAll(this);
+		for (int i = copy.size - 1; i >= 0; i--) {
+			sortedDistances[i] = copy.distances[0];
+			sortedEntries[i] = copy.entries[0];
+			sortedRows[i] = copy.rows[0];
+			copy.removeMax();
+		}
+	}
+
+	private void removeMax() {
+		size--;
+		distances[0] = distances[size];
+		entries[0] = entries[size];
+		rows[0] = rows[size];
+		entries[size] = null;
+		siftDown(0);
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (distances[parent] >= distances[i])
+				break;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i) {
+		while (true) {
+			int largest = i;
+			int left = 2 * i + 1;
+			int right = left + 1;
+			if (left < size && distances[left] > distances[largest])
+				largest = left;
+			if (right < size && distances[right] > distances[largest])
+				largest = right;
+			if (largest == i)
+				break;
+			swap(i, largest);
+			i = largest;
+		}
+	}
+
+	private void swap(int i, int j) {
+		int distance = distances[i];
+		distances[i] = distances[j];
+		distances[j] = distance;
+		String entry = entries[i];
+		entries[i] = entries[j];
+		entries[j] = entry;
+		long row = rows[i];
+		rows[i] = rows[j];
+		rows[j] = row;
+	}
+}
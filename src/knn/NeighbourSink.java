@@ -0,0 +1,20 @@
+package knn;
+
+/**
+ * Receives scanned rows. {@link #accepts(int)} is checked before the entry
+ * string of a row is built, so rows that would be dropped cost nothing.
+ */
+interface NeighbourSink {
+
+	boolean accepts(int distance);
+
+	void add(int distance, String entry);
+
+	/**
+	 * Same as {@link #add(int, String)} for the row at the given position of
+	 * the scanned file, rows counted from 0.
+	 */
+	default void add(int distance, String entry, long row) {
+		add(distance, entry);
+	}
+}
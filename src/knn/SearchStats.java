@@ -0,0 +1,121 @@
+package knn;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Statistics of searches: scan throughput and candidate counts of every
+ * signature file, and latency histograms of file scans and of whole
+ * queries. Scans of the same file, e.g. the ranges of a split file or the
+ * batches of a server, are summed. The report is written as JSON.
+ */
+public class SearchStats {
+	private final LatencyHistogram		scanLatency		= new LatencyHistogram();
+	private final LatencyHistogram		queryLatency	= new LatencyHistogram();
+	private final Map<String, FileTotals>	files			= new LinkedHashMap<String, FileTotals>();
+
+	/**
+	 * @param rows
+	 *            Rows compared with the search signature.
+	 * @param candidates
+	 *            Rows handed to the neighbours or re-ranking candidates.
+	 */
+	public void recordScan(String file, long bytes, long rows, long candidates, long nanos) {
+		scanLatency.record(nanos);
+		synchronized (files) {
+			FileTotals totals = files.get(file);
+			if (totals == null) {
+				totals = new FileTotals();
+				files.put(file, totals);
+			}
+			totals.scans++;
+			totals.bytes += bytes;
+			totals.rows += rows;
+			totals.candidates += candidates;
+			totals.nanos += nanos;
+		}
+	}
+
+	public void recordQuery(long nanos) {
+		queryLatency.record(nanos);
+	}
+
+	public void writeReport(PrintWriter pw) {
+		pw.println("{");
+		pw.println("  \"queries\": " + queryLatency.getCount() + ",");
+		pw.println("  \"queryLatencyMicros\": " + latencies(queryLatency) + ",");
+		pw.println("  \"scanLatencyMicros\": " + latencies(scanLatency) + ",");
+		pw.println("  \"files\": [");
+		synchronized (files) {
+			int i = 0;
+			for (Map.Entry<String, FileTotals> file : files.entrySet()) {
+				FileTotals totals = file.getValue();
+				double seconds = Math.max(1, totals.nanos) / 1e9;
+				pw.print(String.format(Locale.ROOT, "    {\"file\": \"%s\", \"scans\": %d, \"bytes\": %d, "
+						+ "\"rows\": %d, \"candidates\": %d, \"millis\": %.3f, \"rowsPerSecond\": %.0f, "
+						+ "\"megabytesPerSecond\": %.3f}", escape(file.getKey()), totals.scans, totals.bytes,
+						totals.rows, totals.candidates, totals.nanos / 1e6, totals.rows / seconds, totals.bytes
+								/ seconds / (1 << 20)));
+				pw.println(++i < files.size() ? "," : "");
+			}
+		}
+		pw.println("  ]");
+		pw.println("}");
+	}
+
+	private static String latencies(LatencyHistogram histogram) {
+		return String.format(Locale.ROOT, "{\"count\": %d, \"mean\": %.1f, \"p50\": %.1f, \"p90\": %.1f, "
+				+ "\"p99\": %.1f, \"p999\": %.1f, \"max\": %.1f}", histogram.getCount(), histogram.getMean() / 1e3,
+				histogram.percentile(50) / 1e3, histogram.percentile(90) / 1e3, histogram.percentile(99) / 1e3,
+				histogram.percentile(99.9) / 1e3, histogram.getMax() / 1e3);
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	private static class FileTotals {
+		long	scans;
+		long	bytes;
+		long	rows;
+		long	candidates;
+		long	nanos;
+	}
+
+	/**
+	 * Counts the rows offered to a sink and the rows it takes.
+	 */
+	static class CountingSink implements NeighbourSink {
+		private final NeighbourSink	sink;
+		long						rows;
+		long						candidates;
+
+		CountingSink(NeighbourSink sink) {
+			this.sink = sink;
+		}
+
+		NeighbourSink sink() {
+			return sink;
+		}
+
+		@Override
+		public boolean accepts(int distance) {
+			rows++;
+			return sink.accepts(distance);
+		}
+
+		@Override
+		public void add(int distance, String entry) {
+			candidates++;
+			sink.add(distance, entry);
+		}
+
+		@Override
+		public void add(int distance, String entry, long row) {
+			candidates++;
+			sink.add(distance, entry, row);
+		}
+	}
+}
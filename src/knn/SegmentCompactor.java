@@ -0,0 +1,305 @@
+package knn;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.Text;
+
+import lsh.BinarySignatureOutputFormat;
+import lsh.BinarySignatureOutputFormat.BinarySignatureRecordWriter;
+import lsh.BucketSummaryWriter;
+import lsh.EuclideanLsh;
+import lsh.SignatureWritable;
+import lsh.VectorStoreWriter;
+
+/**
+ * Merges the segments written by EuclideanLsh -append into a single
+ * segment, so that searches open a few large files instead of one small
+ * file per ingestion. It is meant to run in the background next to
+ * searches. The merged segment is written to a directory that searches
+ * skip and is only moved into place once it is complete. The merged
+ * segments are deleted right after, and a search running in between may
+ * see their rows twice or skip the files deleted under it. The merged files
+ * get new bucket summaries.
+ */
+public class SegmentCompactor {
+	private static final String	TEXT_PART	= "-c-00000";
+	private static final String	BINARY_PART	= "-c-00001";
+
+	private final FileSystem	fs;
+
+	public SegmentCompactor(Configuration conf) throws IOException {
+		this.fs = FileSystem.getLocal(conf);
+	}
+
+	/**
+	 * Merges the given segments into a new segment of the signature
+	 * directory, then deletes them.
+	 *
+	 * @return The new segment.
+	 */
+	public Path compact(Path signatureDirectory, List<Path> segments) throws IOException {
+		Path work = reserve(signatureDirectory);
+		try {
+			String merged = work.getFileName().toString().substring(1);
+			List<Path> textFiles = new ArrayList<Path>();
+			List<Path> binaryFiles = new ArrayList<Path>();
+			for (Path segment : segments) {
+				for (Path file : Files.walk(segment)
+						.filter(filePath -> LazyKnnSearch.isSignatureFile(segment, filePath)).sorted()
+						.collect(Collectors.toList())) {
+					if (BinarySignatureFile.isBinary(file)) {
+						binaryFiles.add(file);
+					} else {
+						textFiles.add(file);
+					}
+				}
+			}
+			if (!textFiles.isEmpty()) {
+				mergeText(textFiles, work.resolve(merged + TEXT_PART));
+			}
+			if (!binaryFiles.isEmpty()) {
+				mergeBinary(binaryFiles, work.resolve(merged + BINARY_PART + BinarySignatureOutputFormat.EXTENSION));
+			}
+		} catch (IOException | RuntimeException e) {
+			// A work directory left behind would hold its segment name for good
+			deleteRecursively(work);
+			throw e;
+		}
+		Path target = moveIntoPlace(signatureDirectory, work);
+		for (Path segment : segments) {
+			deleteRecursively(segment);
+		}
+		return target;
+	}
+
+	/**
+	 * Reserves the next segment name by creating its work directory, named
+	 * after it with a leading "_". EuclideanLsh -append and other
+	 * compactions count work directories when naming a segment.
+	 */
+	private Path reserve(Path signatureDirectory) throws IOException {
+		while (true) {
+			String name = EuclideanLsh.nextSegment(toHadoop(signatureDirectory), fs.getConf());
+			Path work = signatureDirectory.resolve("_" + name);
+			try {
+				Files.createDirectory(work);
+				return work;
+			} catch (FileAlreadyExistsException e) {
+				// Reserved by a concurrent compaction in between
+			}
+		}
+	}
+
+	/**
+	 * Moves a merged segment from its work directory into place. An append
+	 * that picked the same name before the work directory was created may
+	 * have taken it, in which case the segment and its files are renamed
+	 * to a newly reserved name.
+	 */
+	private Path moveIntoPlace(Path signatureDirectory, Path work) throws IOException {
+		try {
+			while (true) {
+				String name = work.getFileName().toString().substring(1);
+				Path target = signatureDirectory.resolve(name);
+				if (!Files.exists(target)) {
+					try {
+						Files.move(work, target, StandardCopyOption.ATOMIC_MOVE);
+						return target;
+					} catch (FileSystemException e) {
+						// Taken after the check. Linux reports a move onto a
+						// non-empty directory as a plain FileSystemException.
+						if (!Files.exists(target)) {
+							throw e;
+						}
+					}
+				}
+				Path renamed = reserve(signatureDirectory);
+				String newName = renamed.getFileName().toString().substring(1);
+				try {
+					// File names, and those of their checksums, start with the
+					// segment name, which keeps them unique across segments
+					for (Path file : Files.list(work).collect(Collectors.toList())) {
+						String fileName = file.getFileName().toString();
+						int start = fileName.startsWith(".") ? 1 : 0;
+						Files.move(file, renamed.resolve(fileName.substring(0, start) + newName
+								+ fileName.substring(start + name.length())));
+					}
+					Files.delete(work);
+				} catch (IOException | RuntimeException e) {
+					deleteRecursively(renamed);
+					throw e;
+				}
+				work = renamed;
+			}
+		} catch (IOException | RuntimeException e) {
+			// A work directory left behind would hold its segment name for good
+			if (Files.exists(work)) {
+				deleteRecursively(work);
+			}
+			throw e;
+		}
+	}
+
+	// Text rows are copied as they are, so entries and row order are kept
+	private void mergeText(List<Path> files, Path output) throws IOException {
+		try (FSDataOutputStream out = fs.create(toHadoop(output), false)) {
+			for (Path file : files) {
+				Files.copy(file, out);
+			}
+		}
+		summarizeText(output);
+		mergeVectors(files, output);
+	}
+
+	// Summarizes the buckets before the tab of every row of a text file
+	private void summarizeText(Path file) throws IOException {
+		BucketSummaryWriter summary = null;
+		try (BufferedReader br = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			int[] buckets = null;
+			while ((line = br.readLine()) != null) {
+				String[] signature = line.substring(0, Math.max(0, line.indexOf('\t'))).split(",");
+				if (summary == null) {
+					buckets = new int[signature.length];
+					summary = new BucketSummaryWriter(fs.create(toHadoop(BucketSummary.summaryFileOf(file)), false),
+							buckets.length, BinarySignatureOutputFormat.DEFAULT_BLOCK_ROWS);
+				}
+				for (int h = 0; h < buckets.length; h++) {
+					buckets[h] = Integer.parseInt(signature[h]);
+				}
+				summary.add(buckets);
+			}
+		} finally {
+			if (summary != null) {
+				summary.close();
+			}
+		}
+	}
+
+	// Binary records are rewritten to refer to one merged entry table, in
+	// compressed blocks if any of the files was compressed
+	private void mergeBinary(List<Path> files, Path output) throws IOException {
+		int rowsPerBlock = 0;
+		for (Path file : files) {
+			try (BinarySignatureFile signatures = BinarySignatureFile.open(file)) {
+				rowsPerBlock = Math.max(rowsPerBlock, signatures.getRowsPerBlock());
+			}
+		}
+		BinarySignatureRecordWriter writer = new BinarySignatureRecordWriter(fs.create(toHadoop(output), false),
+				rowsPerBlock);
+		BucketSummaryWriter summary = null;
+		SignatureWritable signature = new SignatureWritable();
+		Text entryText = new Text();
+		try {
+			for (Path file : files) {
+				try (BinarySignatureFile signatures = BinarySignatureFile.open(file)) {
+					if (summary == null) {
+						// Summary blocks line up with the merged blocks
+						summary = new BucketSummaryWriter(fs.create(toHadoop(BucketSummary.summaryFileOf(output)),
+								false), signatures.getSignatureLength(), rowsPerBlock > 0 ? rowsPerBlock
+										: BinarySignatureOutputFormat.DEFAULT_BLOCK_ROWS);
+					}
+					BucketSummaryWriter fileSummary = summary;
+					signatures.forEach((buckets, entry) -> {
+						signature.set(buckets);
+						entryText.set(entry);
+						writer.write(signature, entryText);
+						fileSummary.add(buckets);
+					});
+				}
+			}
+		} finally {
+			if (summary != null) {
+				summary.close();
+			}
+		}
+		writer.close(null);
+		mergeVectors(files, output);
+	}
+
+	/**
+	 * Concatenates the vector files of the given signature files in the same
+	 * order as their rows. Nothing is written if any of them has none.
+	 */
+	private void mergeVectors(List<Path> signatureFiles, Path output) throws IOException {
+		for (Path file : signatureFiles) {
+			if (!Files.exists(VectorStore.vectorFileOf(file))) {
+				System.err.println("No vector file for " + file + ", compacted segment will have none");
+				return;
+			}
+		}
+		VectorStoreWriter writer = new VectorStoreWriter(fs.create(toHadoop(VectorStore.vectorFileOf(output)),
+				false));
+		int[] indices = new int[64];
+		double[] values = new double[64];
+		for (Path file : signatureFiles) {
+			try (VectorStore store = VectorStore.open(VectorStore.vectorFileOf(file))) {
+				for (long row = 0; row < store.size(); row++) {
+					int nonZeros = store.nonZeros(row);
+					if (nonZeros > indices.length) {
+						indices = new int[nonZeros];
+						values = new double[nonZeros];
+					}
+					store.read(row, indices, values);
+					writer.write(indices, values, nonZeros);
+				}
+			}
+		}
+		writer.close();
+	}
+
+	private static void deleteRecursively(Path path) throws IOException {
+		for (Path file : Files.walk(path).sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+			Files.delete(file);
+		}
+	}
+
+	private static org.apache.hadoop.fs.Path toHadoop(Path path) {
+		return new org.apache.hadoop.fs.Path(path.toAbsolutePath().toUri());
+	}
+
+	/**
+	 * Compacts the segments of a signature directory once there are at
+	 * least the given number of them.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage : SegmentCompactor signature_directory [-min segments]");
+			System.exit(1);
+		}
+		int minSegments = 2;
+		for (int i = 1; i < args.length; i++) {
+			switch (args[i]) {
+				case "-min":
+					minSegments = Integer.parseInt(args[++i]);
+					break;
+			}
+		}
+		Path signatureDirectory = Paths.get(args[0]);
+		List<Path> segments = Files.list(signatureDirectory)
+				.filter(path -> Files.isDirectory(path)
+						&& path.getFileName().toString().startsWith(EuclideanLsh.SEGMENT_PREFIX))
+				.sorted().collect(Collectors.toList());
+		if (segments.size() < Math.max(minSegments, 2)) {
+			System.out.println(segments.size() + " segments, nothing to compact");
+			return;
+		}
+		Path merged = new SegmentCompactor(new Configuration()).compact(signatureDirectory, segments);
+		System.out.println(segments.size() + " segments compacted into " + merged);
+	}
+}
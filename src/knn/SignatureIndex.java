@@ -0,0 +1,276 @@
+package knn;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Inverted index over one EuclideanLsh signature file. For every signature
+ * position the index maps each bucket value to the list of entries hashed
+ * into it, so a query only reads the postings of its own buckets. The file
+ * is memory-mapped on open and nothing is parsed into the heap.
+ *
+ * Layout, big-endian:
+ *
+ * <pre>
+ * header    : magic, signature length, entry count, bucket count, posting count
+ * dirSizes  : int[signature length] buckets of each position
+ * directory : (int bucket, int first posting, int posting count)[bucket count],
+ *             sorted by position then bucket
+ * postings  : int[posting count] entry ids
+ * offsets   : int[entry count + 1] byte offsets into the entry data
+ * entries   : UTF-8 entry data
+ * </pre>
+ */
+public class SignatureIndex {
+	public static final String	INDEX_SUFFIX	= ".idx";
+
+	private static final int	MAGIC			= 0x4C534849;
+	private static final int	HEADER_SIZE		= 5 * 4;
+	private static final int	DIRECTORY_ENTRY	= 3 * 4;
+
+	private final ByteBuffer	buffer;
+	private final int			signatureLength;
+	private final int			numEntries;
+	// Index of the first directory record of each position, plus an end
+	// marker
+	private final int[]			positionStart;
+	private final int			directoryOffset;
+	private final int			postingsOffset;
+	private final int			offsetsOffset;
+	private final int			entriesOffset;
+
+	private SignatureIndex(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.getInt(0) != MAGIC) { throw new IOException("Not a signature index"); }
+		this.signatureLength = buffer.getInt(4);
+		this.numEntries = buffer.getInt(8);
+		int numBuckets = buffer.getInt(12);
+		int numPostings = buffer.getInt(16);
+		this.positionStart = new int[signatureLength + 1];
+		for (int p = 0; p < signatureLength; p++) {
+			positionStart[p + 1] = positionStart[p] + buffer.getInt(HEADER_SIZE + 4 * p);
+		}
+		this.directoryOffset = HEADER_SIZE + 4 * signatureLength;
+		this.postingsOffset = directoryOffset + DIRECTORY_ENTRY * numBuckets;
+		this.offsetsOffset = postingsOffset + 4 * numPostings;
+		this.entriesOffset = offsetsOffset + 4 * (numEntries + 1);
+	}
+
+	/**
+	 * Memory-maps an index file written by {@link #build(Path, Path)}.
+	 */
+	public static SignatureIndex open(Path indexFile) throws IOException {
+		try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new SignatureIndex(buffer);
+		}
+	}
+
+	public int getSignatureLength() {
+		return signatureLength;
+	}
+
+	public int size() {
+		return numEntries;
+	}
+
+	/**
+	 * Counts, for every entry sharing at least one bucket with the given
+	 * signature, the number of positions it shares.
+	 *
+	 * @param signature
+	 *            Bucket of each signature position of the query.
+	 * @return Entry id to number of matching positions.
+	 */
+	public HashMap<Integer, Integer> countMatches(int[] signature) {
+		return countMatches(new MultiProbeQuery(signature));
+	}
+
+	/**
+	 * Same as {@link #countMatches(int[])}, where every bucket the query
+	 * accepts at a position is looked up. An entry has one bucket per
+	 * position, so it is still counted at most once per position.
+	 */
+	public HashMap<Integer, Integer> countMatches(MultiProbeQuery query) {
+		HashMap<Integer, Integer> matches = new HashMap<Integer, Integer>();
+		for (int p = 0; p < signatureLength; p++) {
+			for (int bucket = query.lowest(p); bucket <= query.highest(p); bucket++) {
+				int record = findBucket(p, bucket);
+				if (record < 0)
+					continue;
+				int recordOffset = directoryOffset + DIRECTORY_ENTRY * record;
+				int first = buffer.getInt(recordOffset + 4);
+				int count = buffer.getInt(recordOffset + 8);
+				for (int i = 0; i < count; i++) {
+					matches.merge(buffer.getInt(postingsOffset + 4 * (first + i)), 1, Integer::sum);
+				}
+			}
+		}
+		return matches;
+	}
+
+	public String getEntry(int entryId) {
+		int start = buffer.getInt(offsetsOffset + 4 * entryId);
+		int end = buffer.getInt(offsetsOffset + 4 * (entryId + 1));
+		byte[] bytes = new byte[end - start];
+		ByteBuffer view = buffer.duplicate();
+		view.position(entriesOffset + start);
+		view.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	// Binary search of a bucket among the directory records of a position
+	private int findBucket(int position, int bucket) {
+		int low = positionStart[position];
+		int high = positionStart[position + 1] - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int midBucket = buffer.getInt(directoryOffset + DIRECTORY_ENTRY * mid);
+			if (midBucket < bucket)
+				low = mid + 1;
+			else if (midBucket > bucket)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * Builds the index of one signature file, whose lines are a
+	 * comma-separated signature, a tab and the entry.
+	 */
+	public static void build(Path signatureFile, Path indexFile) throws IOException {
+		int signatureLength = -1;
+		int numEntries = 0;
+		int[] buckets = new int[1024];
+		ByteArrayOutputStream entryData = new ByteArrayOutputStream();
+		int[] entryOffsets = new int[1024];
+
+		BufferedReader br = new BufferedReader(new FileReader(new File(signatureFile.toUri())));
+		String lshEntry;
+		while ((lshEntry = br.readLine()) != null) {
+			int tab = lshEntry.indexOf('\t');
+			String[] signature = lshEntry.substring(0, tab).split(",");
+			if (signatureLength < 0) {
+				signatureLength = signature.length;
+			}
+			else if (signature.length != signatureLength) {
+				br.close();
+				throw new IOException("Signature length mismatch in " + signatureFile);
+			}
+			if ((numEntries + 1) * signatureLength > buckets.length) {
+				buckets = Arrays.copyOf(buckets, Math.max(buckets.length * 2, (numEntries + 1) * signatureLength));
+			}
+			for (int p = 0; p < signatureLength; p++) {
+				buckets[numEntries * signatureLength + p] = Integer.parseInt(signature[p]);
+			}
+			if (numEntries + 2 > entryOffsets.length) {
+				entryOffsets = Arrays.copyOf(entryOffsets, entryOffsets.length * 2);
+			}
+			entryData.write(lshEntry.substring(tab + 1).getBytes(StandardCharsets.UTF_8));
+			entryOffsets[++numEntries] = entryData.size();
+		}
+		br.close();
+		if (signatureLength < 0) {
+			signatureLength = 0;
+		}
+
+		// Sort (bucket, entry) pairs of every position, which groups each
+		// bucket's postings together in entry order
+		long[][] sortedPairs = new long[signatureLength][numEntries];
+		int[] bucketsPerPosition = new int[signatureLength];
+		int numBuckets = 0;
+		for (int p = 0; p < signatureLength; p++) {
+			long[] pairs = sortedPairs[p];
+			for (int e = 0; e < numEntries; e++) {
+				pairs[e] = ((long) buckets[e * signatureLength + p] << 32) | e;
+			}
+			Arrays.sort(pairs);
+			for (int e = 0; e < numEntries; e++) {
+				if (e == 0 || (int) (pairs[e] >> 32) != (int) (pairs[e - 1] >> 32)) {
+					bucketsPerPosition[p]++;
+				}
+			}
+			numBuckets += bucketsPerPosition[p];
+		}
+		long numPostings = (long) signatureLength * numEntries;
+		long size = HEADER_SIZE + 4L * signatureLength + (long) DIRECTORY_ENTRY * numBuckets + 4 * numPostings + 4L
+				* (numEntries + 1) + entryData.size();
+		if (size > Integer.MAX_VALUE) { throw new IOException("Signature file too large to index: " + signatureFile); }
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+				indexFile.toFile())));
+		out.writeInt(MAGIC);
+		out.writeInt(signatureLength);
+		out.writeInt(numEntries);
+		out.writeInt(numBuckets);
+		out.writeInt((int) numPostings);
+		for (int p = 0; p < signatureLength; p++) {
+			out.writeInt(bucketsPerPosition[p]);
+		}
+		int postingStart = 0;
+		for (int p = 0; p < signatureLength; p++) {
+			long[] pairs = sortedPairs[p];
+			int runStart = 0;
+			for (int e = 1; e <= numEntries; e++) {
+				if (e == numEntries || (int) (pairs[e] >> 32) != (int) (pairs[runStart] >> 32)) {
+					out.writeInt((int) (pairs[runStart] >> 32));
+					out.writeInt(postingStart + runStart);
+					out.writeInt(e - runStart);
+					runStart = e;
+				}
+			}
+			postingStart += numEntries;
+		}
+		for (int p = 0; p < signatureLength; p++) {
+			for (long pair : sortedPairs[p]) {
+				out.writeInt((int) pair);
+			}
+		}
+		for (int e = 0; e <= numEntries; e++) {
+			out.writeInt(entryOffsets[e]);
+		}
+		entryData.writeTo(out);
+		out.close();
+	}
+
+	/**
+	 * Builds one index per signature file of a directory.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage : SignatureIndex signature_directory index_directory");
+			System.exit(1);
+		}
+		Path indexDirectory = Paths.get(args[1]);
+		Files.createDirectories(indexDirectory);
+		Path signatureDirectory = Paths.get(args[0]);
+		Files.walk(signatureDirectory).forEach(filePath -> {
+			try {
+				if (LazyKnnSearch.isSignatureFile(signatureDirectory, filePath)
+						&& !BinarySignatureFile.isBinary(filePath)) {
+					build(filePath, indexDirectory.resolve(filePath.getFileName() + INDEX_SUFFIX));
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+}
@@ -0,0 +1,84 @@
+package knn;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The rows of a text signature file parsed once into a flat int array, for
+ * a server that scans the same files for every batch of queries.
+ */
+class SignatureTable {
+	private final int			signatureLength;
+	// Buckets of row r at [r * signatureLength, (r + 1) * signatureLength)
+	private final int[]			buckets;
+	private final String[]		entries;
+
+	private SignatureTable(int signatureLength, int[] buckets, String[] entries) {
+		this.signatureLength = signatureLength;
+		this.buckets = buckets;
+		this.entries = entries;
+	}
+
+	public static SignatureTable load(Path path, int signatureLength) throws IOException {
+		int[] buckets = new int[1024 * signatureLength];
+		List<String> entries = new ArrayList<String>();
+		try (BufferedReader br = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				int base = entries.size() * signatureLength;
+				if (base + signatureLength > buckets.length) {
+					buckets = Arrays.copyOf(buckets, buckets.length * 2);
+				}
+				int pos = 0;
+				for (int h = 0; h < signatureLength; h++) {
+					int end = pos;
+					while (end < line.length() && line.charAt(end) != ','
+							&& line.charAt(end) != '\t') {
+						end++;
+					}
+					if (end == line.length()) {
+						throw new IOException("Signature length of " + path
+								+ " does not match the hash function");
+					}
+					buckets[base + h] = Integer.parseInt(line.substring(pos, end));
+					pos = end + 1;
+				}
+				entries.add(line.substring(line.indexOf('\t') + 1));
+			}
+		}
+		return new SignatureTable(signatureLength,
+				Arrays.copyOf(buckets, entries.size() * signatureLength),
+				entries.toArray(new String[entries.size()]));
+	}
+
+	public int size() {
+		return entries.length;
+	}
+
+	/**
+	 * Offers every row to the sink at the index of each query, with the
+	 * number of positions that query does not match.
+	 */
+	public void search(MultiProbeQuery[] queries, NeighbourSink[] sinks) {
+		for (int r = 0; r < entries.length; r++) {
+			int base = r * signatureLength;
+			for (int q = 0; q < queries.length; q++) {
+				int dist = 0;
+				for (int h = 0; h < signatureLength; h++) {
+					if (!queries[q].matches(h, buckets[base + h])) {
+						dist++;
+					}
+				}
+				if (sinks[q].accepts(dist) && queries[q].isCandidate(dist)) {
+					sinks[q].add(dist, entries[r], r);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package knn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import lsh.BinarySignatureOutputFormat;
+import lsh.VectorStoreWriter;
+
+/**
+ * Reader of the vector files written by VectorStoreWriter. The file is
+ * memory-mapped and vectors are read in place by row number, so looking up
+ * a candidate copies nothing into the heap.
+ */
+public class VectorStore implements Closeable {
+	private final FileChannel	channel;
+	private final ByteBuffer	buffer;
+	private final long			offsetsOffset;
+	private final int			count;
+
+	private VectorStore(FileChannel channel) throws IOException {
+		this.channel = channel;
+		long size = channel.size();
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Vector file too large to map");
+		}
+		this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		int trailer = (int) size - VectorStoreWriter.TRAILER_SIZE;
+		if (buffer.getInt(0) != VectorStoreWriter.MAGIC
+				|| buffer.getInt(trailer + 12) != VectorStoreWriter.MAGIC) {
+			throw new IOException("Not a vector file");
+		}
+		this.offsetsOffset = buffer.getLong(trailer);
+		this.count = buffer.getInt(trailer + 8);
+	}
+
+	public static VectorStore open(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			return new VectorStore(channel);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public static boolean isVectorFile(Path path) {
+		return path.getFileName().toString()
+				.endsWith(VectorStoreWriter.EXTENSION);
+	}
+
+	/**
+	 * The vector file written alongside a signature file, or alongside the
+	 * signature file an index was built from.
+	 */
+	public static Path vectorFileOf(Path signatureFile) {
+		String name = signatureFile.getFileName().toString();
+		for (String suffix : new String[] { SignatureIndex.INDEX_SUFFIX,
+				BinarySignatureOutputFormat.EXTENSION }) {
+			if (name.endsWith(suffix)) {
+				name = name.substring(0, name.length() - suffix.length());
+			}
+		}
+		return signatureFile.resolveSibling(name + VectorStoreWriter.EXTENSION);
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Dot product of a stored vector with a dense vector indexed by
+	 * feature index.
+	 */
+	public double dot(long row, double[] dense) {
+		int offset = offset(row);
+		int nonZeros = buffer.getInt(offset);
+		int indices = offset + 4;
+		int values = indices + 4 * nonZeros;
+		double dot = 0;
+		for (int i = 0; i < nonZeros; i++) {
+			int index = buffer.getInt(indices + 4 * i);
+			if (index < dense.length) {
+				dot += buffer.getDouble(values + 8 * i) * dense[index];
+			}
+		}
+		return dot;
+	}
+
+	public double squaredNorm(long row) {
+		int offset = offset(row);
+		int nonZeros = buffer.getInt(offset);
+		int values = offset + 4 + 4 * nonZeros;
+		double sum = 0;
+		for (int i = 0; i < nonZeros; i++) {
+			double value = buffer.getDouble(values + 8 * i);
+			sum += value * value;
+		}
+		return sum;
+	}
+
+	public int nonZeros(long row) {
+		return buffer.getInt(offset(row));
+	}
+
+	/**
+	 * Copies a stored vector into arrays of at least nonZeros(row) elements.
+	 */
+	public void read(long row, int[] indices, double[] values) {
+		int offset = offset(row);
+		int nonZeros = buffer.getInt(offset);
+		for (int i = 0; i < nonZeros; i++) {
+			indices[i] = buffer.getInt(offset + 4 + 4 * i);
+			values[i] = buffer.getDouble(offset + 4 + 4 * nonZeros + 8 * i);
+		}
+	}
+
+	private int offset(long row) {
+		if (row < 0 || row >= count) {
+			throw new IndexOutOfBoundsException("No vector at row " + row);
+		}
+		return (int) buffer.getLong((int) (offsetsOffset + 8 * row));
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,200 @@
+package lsh;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.Deflater;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+/**
+ * Writes EuclideanLsh signatures as fixed-width binary records that can be
+ * scanned in place through a memory mapping. All numbers are big-endian.
+ *
+ * <pre>
+ * header  : MAGIC, signature length
+ * records : (int[signature length] buckets, int entry id)*
+ * entries : entry count, (int length, UTF-8 bytes)*
+ * trailer : long offset of the entries, MAGIC
+ * </pre>
+ *
+ * Entries, the input file names, repeat for every record of a file, so each
+ * distinct entry is stored once and records refer to it by id.
+ *
+ * When {@link #BLOCK_ROWS_KEY} is set, records are instead written in
+ * blocks of that many rows. A block holds the buckets and entry ids of its
+ * rows as zigzag varints, deflated, so a reader inflates one block at a
+ * time and can still seek to any block.
+ *
+ * <pre>
+ * header  : BLOCK_MAGIC, signature length, rows per block
+ * blocks  : (int raw length, deflated varints)*
+ * entries : as above
+ * index   : long[blocks + 1] offset of each block, then of the entries
+ * trailer : long offset of the entries, long offset of the index,
+ *           long records, BLOCK_MAGIC
+ * </pre>
+ */
+public class BinarySignatureOutputFormat extends FileOutputFormat<SignatureWritable, Text> {
+	public static final int		MAGIC				= 0x4C534853;
+	public static final int		BLOCK_MAGIC			= 0x4C53485A;
+	public static final String	EXTENSION			= ".sig";
+	public static final int		HEADER_SIZE			= 8;
+	public static final int		TRAILER_SIZE		= 12;
+	public static final int		BLOCK_HEADER_SIZE	= 12;
+	public static final int		BLOCK_TRAILER_SIZE	= 28;
+	// Rows per compressed block, 0 for fixed-width records
+	public static final String	BLOCK_ROWS_KEY		= "lsh.signature.block.rows";
+	public static final int		DEFAULT_BLOCK_ROWS	= 4096;
+
+	@Override
+	public RecordWriter<SignatureWritable, Text> getRecordWriter(TaskAttemptContext job) throws IOException,
+			InterruptedException {
+		Path file = getDefaultWorkFile(job, EXTENSION);
+		FSDataOutputStream out = file.getFileSystem(job.getConfiguration()).create(file, false);
+		return new BinarySignatureRecordWriter(out, job.getConfiguration().getInt(BLOCK_ROWS_KEY, 0));
+	}
+
+	/**
+	 * Writes one binary signature file. The context passed to close is not
+	 * used, so the writer can also be used outside a task.
+	 */
+	public static class BinarySignatureRecordWriter extends RecordWriter<SignatureWritable, Text> {
+		private final FSDataOutputStream	out;
+		private final HashMap<Text, Integer>	entryIds	= new HashMap<Text, Integer>();
+		private final ArrayList<Text>		entries		= new ArrayList<Text>();
+		private int							signatureLength	= -1;
+		// Set when writing compressed blocks
+		private final int					rowsPerBlock;
+		private Deflater					deflater;
+		private byte[]						block;
+		private int							blockLength;
+		private int							blockRows;
+		private byte[]						deflated;
+		private long[]						blockOffsets;
+		private int							blocks;
+		private long						records;
+
+		public BinarySignatureRecordWriter(FSDataOutputStream out) {
+			this(out, 0);
+		}
+
+		/**
+		 * @param rowsPerBlock
+		 *            Rows of each compressed block, 0 for fixed-width
+		 *            records.
+		 */
+		public BinarySignatureRecordWriter(FSDataOutputStream out, int rowsPerBlock) {
+			this.out = out;
+			this.rowsPerBlock = rowsPerBlock;
+			if (rowsPerBlock > 0) {
+				deflater = new Deflater(Deflater.BEST_SPEED);
+				block = new byte[1 << 16];
+				deflated = new byte[1 << 16];
+				blockOffsets = new long[64];
+			}
+		}
+
+		@Override
+		public synchronized void write(SignatureWritable key, Text value) throws IOException {
+			int[] buckets = key.get();
+			if (signatureLength < 0) {
+				writeHeader(buckets.length);
+			}
+			else if (buckets.length != signatureLength) { throw new IOException("Signature length mismatch"); }
+			Integer entryId = entryIds.get(value);
+			if (entryId == null) {
+				entryId = entries.size();
+				Text entry = new Text(value);
+				entries.add(entry);
+				entryIds.put(entry, entryId);
+			}
+			records++;
+			if (rowsPerBlock > 0) {
+				int rowBytes = VarInts.MAX_BYTES * (signatureLength + 1);
+				if (blockLength + rowBytes > block.length) {
+					block = Arrays.copyOf(block, Math.max(block.length * 2, blockLength + rowBytes));
+				}
+				for (int bucket : buckets) {
+					blockLength = VarInts.write(bucket, block, blockLength);
+				}
+				blockLength = VarInts.write(entryId, block, blockLength);
+				if (++blockRows == rowsPerBlock) {
+					writeBlock();
+				}
+				return;
+			}
+			for (int bucket : buckets) {
+				out.writeInt(bucket);
+			}
+			out.writeInt(entryId);
+		}
+
+		private void writeHeader(int length) throws IOException {
+			signatureLength = length;
+			if (rowsPerBlock > 0) {
+				out.writeInt(BLOCK_MAGIC);
+				out.writeInt(signatureLength);
+				out.writeInt(rowsPerBlock);
+			}
+			else {
+				out.writeInt(MAGIC);
+				out.writeInt(signatureLength);
+			}
+		}
+
+		private void writeBlock() throws IOException {
+			if (blocks == blockOffsets.length) {
+				blockOffsets = Arrays.copyOf(blockOffsets, blocks * 2);
+			}
+			blockOffsets[blocks++] = out.getPos();
+			out.writeInt(blockLength);
+			deflater.reset();
+			deflater.setInput(block, 0, blockLength);
+			deflater.finish();
+			while (!deflater.finished()) {
+				out.write(deflated, 0, deflater.deflate(deflated));
+			}
+			blockLength = 0;
+			blockRows = 0;
+		}
+
+		@Override
+		public synchronized void close(TaskAttemptContext context) throws IOException {
+			if (signatureLength < 0) {
+				writeHeader(0);
+			}
+			if (blockRows > 0) {
+				writeBlock();
+			}
+			long entriesOffset = out.getPos();
+			out.writeInt(entries.size());
+			for (Text entry : entries) {
+				out.writeInt(entry.getLength());
+				out.write(entry.getBytes(), 0, entry.getLength());
+			}
+			if (rowsPerBlock > 0) {
+				long indexOffset = out.getPos();
+				for (int b = 0; b < blocks; b++) {
+					out.writeLong(blockOffsets[b]);
+				}
+				out.writeLong(entriesOffset);
+				out.writeLong(entriesOffset);
+				out.writeLong(indexOffset);
+				out.writeLong(records);
+				out.writeInt(BLOCK_MAGIC);
+				deflater.end();
+			}
+			else {
+				out.writeLong(entriesOffset);
+				out.writeInt(MAGIC);
+			}
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package lsh;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+
+/**
+ * Input format of a corpus converted by VectorConverter: block-compressed
+ * sequence files keyed by the name of the record's source file, a tab and
+ * the record's label. Files converted before the source was kept are keyed
+ * by the label alone. The files are split at their
+ * sync marks, and the record reader deserializes every record into the same
+ * key and VectorWritable, so a mapper gets its vectors without parsing text
+ * and without garbage.
+ *
+ * The hashing jobs accept text or converted input; {@link #setInput(Job, String)}
+ * picks the format from the first input file.
+ */
+public class BinaryVectorInputFormat extends SequenceFileInputFormat<Text, VectorWritable> {
+	private static final byte[]	SEQUENCE_FILE_MAGIC	= { 'S', 'E', 'Q' };
+
+	/**
+	 * Adds comma-separated input paths to a job, and reads them with this
+	 * format when they hold converted vectors. Text and converted inputs
+	 * cannot be mixed in one job.
+	 */
+	public static void setInput(Job job, String inputs) throws IOException {
+		FileInputFormat.addInputPaths(job, inputs);
+		Path first = firstFile(new Path(inputs.split(",")[0]), job.getConfiguration());
+		if (first != null && isBinaryVectors(first, job.getConfiguration())) {
+			job.setInputFormatClass(BinaryVectorInputFormat.class);
+		}
+	}
+
+	/**
+	 * Whether a file is a sequence file of converted vectors.
+	 */
+	public static boolean isBinaryVectors(Path file, Configuration conf) throws IOException {
+		FileSystem fs = file.getFileSystem(conf);
+		byte[] magic = new byte[SEQUENCE_FILE_MAGIC.length];
+		FSDataInputStream in = fs.open(file);
+		try {
+			in.readFully(magic);
+		}
+		catch (IOException e) {
+			return false;
+		}
+		finally {
+			in.close();
+		}
+		for (int i = 0; i < magic.length; i++) {
+			if (magic[i] != SEQUENCE_FILE_MAGIC[i])
+				return false;
+		}
+		SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(file));
+		try {
+			return reader.getValueClassName().equals(VectorWritable.class.getName());
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	// The input file itself, or the first data file of an input directory
+	private static Path firstFile(Path input, Configuration conf) throws IOException {
+		FileSystem fs = input.getFileSystem(conf);
+		for (FileStatus status : fs.listStatus(input)) {
+			String name = status.getPath().getName();
+			if (status.isFile() && !name.startsWith("_") && !name.startsWith("."))
+				return status.getPath();
+		}
+		return null;
+	}
+
+	/**
+	 * The vector of a record of either format. A converted record is
+	 * returned as read; a text record, a label, a tab and separated
+	 * "index:value" tokens, is parsed into the given vector.
+	 *
+	 * @param label
+	 *            Receives the label of the record, unless null.
+	 */
+	public static SparseVector readRecord(Object key, Object value, char separator, SparseVector parsed, Text label) {
+		if (value instanceof VectorWritable) {
+			if (label != null) {
+				Text converted = (Text) key;
+				int tab = sourceLength(converted);
+				int start = tab < 0 ? 0 : tab + 1;
+				label.set(converted.getBytes(), start, converted.getLength() - start);
+			}
+			return ((VectorWritable) value).get();
+		}
+		Text record = (Text) value;
+		byte[] bytes = record.getBytes();
+		int length = record.getLength();
+		int vectStart = 0;
+		while (vectStart < length && bytes[vectStart] != '\t') {
+			vectStart++;
+		}
+		if (label != null)
+			label.set(bytes, 0, vectStart);
+		parsed.parse(bytes, vectStart + 1, length, separator);
+		return parsed;
+	}
+
+	/**
+	 * Sets source to the name of the file a converted record was converted
+	 * from.
+	 *
+	 * @return False, leaving source unchanged, for a text record or one
+	 *         converted without its source.
+	 */
+	public static boolean readSource(Object key, Object value, Text source) {
+		if (!(value instanceof VectorWritable))
+			return false;
+		Text converted = (Text) key;
+		int tab = sourceLength(converted);
+		if (tab < 0)
+			return false;
+		source.set(converted.getBytes(), 0, tab);
+		return true;
+	}
+
+	// Position of the tab ending the source of a converted key, -1 if none
+	private static int sourceLength(Text key) {
+		byte[] bytes = key.getBytes();
+		for (int i = 0; i < key.getLength(); i++) {
+			if (bytes[i] == '\t')
+				return i;
+		}
+		return -1;
+	}
+}
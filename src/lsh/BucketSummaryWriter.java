@@ -0,0 +1,107 @@
+package lsh;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+
+/**
+ * Writes the bucket summary of a signature file, so that a search can tell
+ * without reading the signatures whether a block of rows may hold a row
+ * matching enough positions of a query. For each block of rows and each
+ * position the summary holds the lowest and highest bucket and a bitmap of
+ * the buckets in between that occur, so it has no false positives. All
+ * numbers are big-endian.
+ *
+ * <pre>
+ * header : MAGIC, signature length, rows per block
+ * blocks : (int rows, (int lowest, int highest, long[words] bitmap)[signature length])*
+ * </pre>
+ *
+ * A bitmap has {@link #bitmapWords(int, int)} words, none when the range of
+ * a position is wider than MAX_BITMAP_BUCKETS.
+ */
+public class BucketSummaryWriter implements Closeable {
+	public static final int		MAGIC				= 0x4C534842;
+	public static final String	EXTENSION			= ".sum";
+	public static final int		HEADER_SIZE			= 12;
+	// Widest range of buckets of a position kept as a bitmap
+	public static final int		MAX_BITMAP_BUCKETS	= 4096;
+
+	private final FSDataOutputStream	out;
+	private final int					signatureLength;
+	private final int					rowsPerBlock;
+	private final int[]					lowest;
+	private final int[]					highest;
+	// Buckets of the rows of the current block
+	private final int[]					rows;
+	private int							blockRows;
+	private final long[]				bitmap	= new long[MAX_BITMAP_BUCKETS / 64];
+
+	public BucketSummaryWriter(FSDataOutputStream out, int signatureLength, int rowsPerBlock) throws IOException {
+		this.out = out;
+		this.signatureLength = signatureLength;
+		this.rowsPerBlock = rowsPerBlock;
+		this.lowest = new int[signatureLength];
+		this.highest = new int[signatureLength];
+		this.rows = new int[rowsPerBlock * signatureLength];
+		out.writeInt(MAGIC);
+		out.writeInt(signatureLength);
+		out.writeInt(rowsPerBlock);
+	}
+
+	/**
+	 * Words of the bitmap of a position whose buckets range from lowest to
+	 * highest.
+	 */
+	public static int bitmapWords(int lowest, int highest) {
+		long range = (long) highest - lowest + 1;
+		return range > MAX_BITMAP_BUCKETS ? 0 : (int) ((range + 63) / 64);
+	}
+
+	// Adds the next row of the signature file
+	public void add(int[] buckets) throws IOException {
+		if (buckets.length != signatureLength) { throw new IOException("Signature length mismatch"); }
+		System.arraycopy(buckets, 0, rows, blockRows * signatureLength, signatureLength);
+		for (int h = 0; h < signatureLength; h++) {
+			if (blockRows == 0 || buckets[h] < lowest[h]) {
+				lowest[h] = buckets[h];
+			}
+			if (blockRows == 0 || buckets[h] > highest[h]) {
+				highest[h] = buckets[h];
+			}
+		}
+		if (++blockRows == rowsPerBlock) {
+			writeBlock();
+		}
+	}
+
+	private void writeBlock() throws IOException {
+		out.writeInt(blockRows);
+		for (int h = 0; h < signatureLength; h++) {
+			out.writeInt(lowest[h]);
+			out.writeInt(highest[h]);
+			int words = bitmapWords(lowest[h], highest[h]);
+			if (words == 0) {
+				continue;
+			}
+			Arrays.fill(bitmap, 0, words, 0);
+			for (int r = 0; r < blockRows; r++) {
+				int bit = rows[r * signatureLength + h] - lowest[h];
+				bitmap[bit >>> 6] |= 1L << bit;
+			}
+			for (int w = 0; w < words; w++) {
+				out.writeLong(bitmap[w]);
+			}
+		}
+		blockRows = 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (blockRows > 0) {
+			writeBlock();
+		}
+		out.close();
+	}
+}
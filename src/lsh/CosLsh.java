@@ -1,7 +1,5 @@
 package lsh;
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.File;
@@ -10,13 +8,16 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.ObjectInput;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
@@ -24,231 +25,597 @@ import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.mapreduce.Counters;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MRJobConfig;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.Reducer;
-import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.TaskCounter;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 
 public class CosLsh {
-	public static final int			SKETCH_LENGTH	= 30;
-	public static HashSet<BitSet>	usedHashes		= new HashSet<BitSet>();
+	public static int				SKETCH_LENGTH	= 30;
 	public static double			threshold		= 1;					// from
 																			// -1
 																			// to
 																			// 1
 	public static int				VECTOR_LENGTH;
+	// Set when every non-empty line of the search file is a query, in which
+	// case results are tagged with the 0-based index of the query among the
+	// non-empty lines
+	public static final String		BATCH_KEY		= "lsh.cos.batch";
+	public static final String		SEED_KEY		= "lsh.cos.seed";
+	public static final String		VECTOR_LENGTH_KEY	= "lsh.cos.vector.length";
+	public static final String		SKETCH_LENGTH_KEY	= "lsh.cos.sketch.length";
+	// Lowest similarity of a result, read by the tasks
+	public static final String		THRESHOLD_KEY	= "lsh.cos.threshold";
+	// Set to keep only the k most similar results of each query
+	public static final String		TOP_K_KEY		= "lsh.cos.topk";
 
-	public static class TokenizerMapper extends Mapper<Object, Text, BitSetWritable, Text> {
+	public static class TokenizerMapper extends Mapper<Object, Writable, BitSetWritable, Text> {
 
-		private Text		classification	= new Text();
-		private Text		vector			= new Text();
+		private Text			classification	= new Text();
+		private SparseVector	inputVector		= new SparseVector();
+		private BitSetWritable	writableSketch	= new BitSetWritable();
 
-		private BitSet[]	hashFunction;
+		private SignSketcher	sketcher;
+		private long[]			sketch;
+		private long			records;
+		private long			parseNanos;
+		private long			hashNanos;
 
 		@Override
-		protected void setup(Mapper<Object, Text, BitSetWritable, Text>.Context context)
+		protected void setup(Mapper<Object, Writable, BitSetWritable, Text>.Context context)
 				throws IOException, InterruptedException {
 			super.setup(context);
 			Configuration conf = context.getConfiguration();
-			URI[] uriList = Job.getInstance(conf).getCacheFiles();
-			Path filePath = new Path(uriList[0].getPath());
-			String configFileName = filePath.getName().toString();
-			ObjectInputStream ois = new ObjectInputStream(new FileInputStream(configFileName));
-			try {
-				// this.searchSketch = (BitSet) ois.readObject(); // Skipped
-				ois.readObject();
-				this.hashFunction = (BitSet[]) ois.readObject();
-			}
-			catch (ClassNotFoundException e) {
-				ois.close();
-				throw new IOException("Config file mismatch!");
-			}
-			finally {
-				ois.close();
-			}
+			// The hyperplanes are regenerated from the seed rather than
+			// shipped to every task
+			int sketchLength = conf.getInt(SKETCH_LENGTH_KEY, SKETCH_LENGTH);
+			this.sketcher = new SignSketcher(packHyperplanes(generateRandomHash(conf.getLong(SEED_KEY, 0), conf
+					.getInt(VECTOR_LENGTH_KEY, 0), sketchLength)));
+			this.sketch = new long[sketchWords(sketchLength)];
 		}
 
-		public void map(Object key, Text value, Context context) throws IOException, InterruptedException {
-			String entry = value.toString();
-			int vectStart = entry.indexOf("\t");
-			String className = entry.substring(0, vectStart);
-			String vect = entry.substring(vectStart + 1);
-			classification.set(className);
-
-			double[] inputVector = parseDoubleArr(vect.split("/"));
-			BitSet inputSketch = calculateHash(inputVector, hashFunction);
-			BitSetWritable writableSketch = new BitSetWritable();
-			writableSketch.set(inputSketch);
-			vector.set(vect);
+		public void map(Object key, Writable value, Context context) throws IOException, InterruptedException {
+			long start = System.nanoTime();
+			SparseVector vector = BinaryVectorInputFormat.readRecord(key, value, '/', inputVector, classification);
+			long parsed = System.nanoTime();
+			sketcher.sketch(vector.values(), vector.size(), sketch);
+			parseNanos += parsed - start;
+			hashNanos += System.nanoTime() - parsed;
+			records++;
+			writableSketch.set(sketch);
 			context.write(writableSketch, classification);
 		}
+
+		@Override
+		protected void cleanup(Mapper<Object, Writable, BitSetWritable, Text>.Context context)
+				throws IOException, InterruptedException {
+			LshCounter.addMapperTotals(context, records, parseNanos, hashNanos);
+			super.cleanup(context);
+		}
 	}
 
 	public static class MyReducer extends Reducer<BitSetWritable, Text, DoubleWritable, Text> {
-		private BitSet	searchSketch;
-		private Text	classification	= new Text();
-		private Text	vector			= new Text();
+		private long[][]		searchSketches;
+		private HammingSimilarity	similarityTable;
+		private int				maxDistance;
+		private boolean			batch;
+		private int[]			matchedQueries;
+		private double[]		similarities;
+		private DoubleWritable	simScore		= new DoubleWritable();
+		private Text			taggedResult	= new Text();
 
 		@Override
 		protected void setup(Reducer<BitSetWritable, Text, DoubleWritable, Text>.Context context)
 				throws IOException, InterruptedException {
 			super.setup(context);
 			Configuration conf = context.getConfiguration();
-			URI[] uriList = Job.getInstance(conf).getCacheFiles();
-			Path filePath = new Path(uriList[0].getPath());
-			String configFileName = filePath.getName().toString();
-			ObjectInputStream ois = new ObjectInputStream(new FileInputStream(configFileName));
-			try {
-				this.searchSketch = (BitSet) ois.readObject();
-			}
-			catch (ClassNotFoundException e) {
-				ois.close();
-				throw new IOException("Config file mismatch!");
-			}
-			finally {
-				ois.close();
-			}
+			this.batch = conf.getBoolean(BATCH_KEY, false);
+			this.searchSketches = readSearchSketches(conf);
+			this.similarityTable = new HammingSimilarity(conf.getInt(SKETCH_LENGTH_KEY, SKETCH_LENGTH));
+			this.maxDistance = similarityTable.maxDistance(conf.getDouble(THRESHOLD_KEY, threshold));
+			this.matchedQueries = new int[searchSketches.length];
+			this.similarities = new double[searchSketches.length];
 		}
 
 		public void reduce(BitSetWritable key, Iterable<Text> values, Context context)
 				throws IOException, InterruptedException {
-			BitSet hammingMask = (BitSet) searchSketch.clone();
-			hammingMask.xor(key.get());
-			double hammingDist = hammingMask.cardinality();
-			// Similarity range from -1.0 to 1.0
-			double similarity = Math.cos((hammingDist / SKETCH_LENGTH) * Math.PI);
-			if (similarity >= threshold) {
-				DoubleWritable simScore = new DoubleWritable();
-				simScore.set(similarity);
-				for (Text val : values) {
-					context.write(simScore, val);
+			int numMatched = 0;
+			for (int q = 0; q < searchSketches.length; q++) {
+				int distance = HammingSimilarity.distance(searchSketches[q], key.words());
+				if (distance <= maxDistance) {
+					matchedQueries[numMatched] = q;
+					similarities[numMatched++] = similarityTable.similarity(distance);
 				}
 			}
+			if (numMatched == 0)
+				return;
+			long bucketSize = 0;
+			// The values can only be iterated once, so every matched query
+			// is written for each value
+			for (Text val : values) {
+				bucketSize++;
+				for (int i = 0; i < numMatched; i++) {
+					simScore.set(similarities[i]);
+					if (batch) {
+						taggedResult.set(matchedQueries[i] + "\t" + val.toString());
+						context.write(simScore, taggedResult);
+					}
+					else {
+						context.write(simScore, val);
+					}
+				}
+			}
+			context.getCounter(LshCounter.MATCHED_RECORDS).increment(bucketSize);
+			context.getCounter(LshCounter.MATCHED_BUCKETS).increment(1);
+			context.getCounter(LshCounter.matchedBucketSize(bucketSize)).increment(1);
 		}
 	}
 
 	public static class MyCombiner extends Reducer<BitSetWritable, Text, BitSetWritable, Text> {
-		private BitSet	searchSketch;
-		private Text	classification	= new Text();
-		private Text	vector			= new Text();
+		private long[][]	searchSketches;
+		private int			maxDistance;
 
 		@Override
 		protected void setup(Reducer<BitSetWritable, Text, BitSetWritable, Text>.Context context)
 				throws IOException, InterruptedException {
 			super.setup(context);
 			Configuration conf = context.getConfiguration();
-			URI[] uriList = Job.getInstance(conf).getCacheFiles();
-			Path filePath = new Path(uriList[0].getPath());
-			String configFileName = filePath.getName().toString();
-			ObjectInputStream ois = new ObjectInputStream(new FileInputStream(configFileName));
-			try {
-				this.searchSketch = (BitSet) ois.readObject();
+			this.searchSketches = readSearchSketches(conf);
+			this.maxDistance = new HammingSimilarity(conf.getInt(SKETCH_LENGTH_KEY, SKETCH_LENGTH))
+					.maxDistance(conf.getDouble(THRESHOLD_KEY, threshold));
+		}
+
+		public void reduce(BitSetWritable key, Iterable<Text> values, Context context)
+				throws IOException, InterruptedException {
+			for (long[] searchSketch : searchSketches) {
+				if (HammingSimilarity.distance(searchSketch, key.words()) <= maxDistance) {
+					for (Text val : values) {
+						context.write(key, val);
+					}
+					return;
+				}
 			}
-			catch (ClassNotFoundException e) {
-				ois.close();
-				throw new IOException("Config file mismatch!");
+		}
+	}
+
+	/**
+	 * Mapper of a top-k search. Records are compared with the queries here
+	 * and each query keeps the k most similar records seen by the task,
+	 * which are written when the task ends. The shuffle then carries at
+	 * most k records per query and map task, however many records match.
+	 */
+	public static class TopKMapper extends Mapper<Object, Writable, RankWritable, Text> {
+		private SparseVector					inputVector	= new SparseVector();
+		private Text							classification	= new Text();
+		private RankWritable					rank		= new RankWritable();
+
+		private SignSketcher					sketcher;
+		private long[]							sketch;
+		private long[][]						searchSketches;
+		private int								maxDistance;
+		private int								k;
+		// Kept records of each query, the least similar at the head
+		private List<PriorityQueue<RankedRecord>>	kept;
+		private long							records;
+		private long							parseNanos;
+		private long							hashNanos;
+
+		@Override
+		protected void setup(Mapper<Object, Writable, RankWritable, Text>.Context context)
+				throws IOException, InterruptedException {
+			super.setup(context);
+			Configuration conf = context.getConfiguration();
+			int sketchLength = conf.getInt(SKETCH_LENGTH_KEY, SKETCH_LENGTH);
+			this.sketcher = new SignSketcher(packHyperplanes(generateRandomHash(conf.getLong(SEED_KEY, 0), conf
+					.getInt(VECTOR_LENGTH_KEY, 0), sketchLength)));
+			this.sketch = new long[sketchWords(sketchLength)];
+			this.searchSketches = readSearchSketches(conf);
+			this.maxDistance = new HammingSimilarity(sketchLength).maxDistance(conf.getDouble(THRESHOLD_KEY,
+					threshold));
+			this.k = conf.getInt(TOP_K_KEY, 0);
+			this.kept = new ArrayList<PriorityQueue<RankedRecord>>();
+			for (int q = 0; q < searchSketches.length; q++) {
+				kept.add(new PriorityQueue<RankedRecord>(k, (a, b) -> Integer.compare(b.distance, a.distance)));
 			}
-			finally {
-				ois.close();
+		}
+
+		public void map(Object key, Writable value, Context context) throws IOException, InterruptedException {
+			long start = System.nanoTime();
+			SparseVector vector = BinaryVectorInputFormat.readRecord(key, value, '/', inputVector, classification);
+			long parsed = System.nanoTime();
+			sketcher.sketch(vector.values(), vector.size(), sketch);
+			parseNanos += parsed - start;
+			hashNanos += System.nanoTime() - parsed;
+			records++;
+			for (int q = 0; q < searchSketches.length; q++) {
+				int distance = HammingSimilarity.distance(searchSketches[q], sketch);
+				if (distance > maxDistance)
+					continue;
+				PriorityQueue<RankedRecord> queryKept = kept.get(q);
+				if (queryKept.size() < k) {
+					queryKept.add(new RankedRecord(distance, classification));
+				}
+				else if (distance < queryKept.peek().distance) {
+					queryKept.poll();
+					queryKept.add(new RankedRecord(distance, classification));
+				}
 			}
 		}
 
-		public void reduce(BitSetWritable key, Iterable<Text> values, Context context)
+		@Override
+		protected void cleanup(Mapper<Object, Writable, RankWritable, Text>.Context context)
 				throws IOException, InterruptedException {
-			BitSet hammingMask = (BitSet) searchSketch.clone();
-			hammingMask.xor(key.get());
-			double hammingDist = hammingMask.cardinality();
-			// Similarity range from -1.0 to 1.0
-			double similarity = Math.cos((hammingDist / SKETCH_LENGTH) * Math.PI);
-			if (similarity >= threshold) {
-				for (Text val : values) {
-					context.write(key, val);
+			for (int q = 0; q < kept.size(); q++) {
+				for (RankedRecord record : kept.get(q)) {
+					rank.set(q, record.distance);
+					context.write(rank, record.classification);
 				}
 			}
+			LshCounter.addMapperTotals(context, records, parseNanos, hashNanos);
+			super.cleanup(context);
+		}
+	}
+
+	// A record kept by a TopKMapper
+	private static class RankedRecord {
+		final int	distance;
+		final Text	classification	= new Text();
+
+		RankedRecord(int distance, Text label) {
+			this.distance = distance;
+			classification.set(label);
 		}
 	}
 
+	/**
+	 * Reducer of a top-k search. Records arrive grouped by query, most
+	 * similar first, and the first k of each query are written, so the
+	 * output of each query is ranked by similarity.
+	 */
+	public static class TopKReducer extends Reducer<RankWritable, Text, DoubleWritable, Text> {
+		private HammingSimilarity	similarityTable;
+		private boolean				batch;
+		private int					k;
+		private DoubleWritable		simScore		= new DoubleWritable();
+		private Text				taggedResult	= new Text();
+
+		@Override
+		protected void setup(Reducer<RankWritable, Text, DoubleWritable, Text>.Context context)
+				throws IOException, InterruptedException {
+			super.setup(context);
+			Configuration conf = context.getConfiguration();
+			this.batch = conf.getBoolean(BATCH_KEY, false);
+			this.similarityTable = new HammingSimilarity(conf.getInt(SKETCH_LENGTH_KEY, SKETCH_LENGTH));
+			this.k = conf.getInt(TOP_K_KEY, 0);
+		}
+
+		public void reduce(RankWritable key, Iterable<Text> values, Context context)
+				throws IOException, InterruptedException {
+			int written = 0;
+			// The key holds the distance of the current value
+			for (Text val : values) {
+				if (written++ == k)
+					break;
+				simScore.set(similarityTable.similarity(key.getDistance()));
+				if (batch) {
+					taggedResult.set(key.getQuery() + "\t" + val.toString());
+					context.write(simScore, taggedResult);
+				}
+				else {
+					context.write(simScore, val);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Shuffle key of a top-k search: the query a record was matched with and
+	 * the Hamming distance of their sketches. Keys sort by query, then by
+	 * distance, i.e. by descending similarity. Both are written as
+	 * non-negative big-endian ints, so the serialized bytes sort the same
+	 * way.
+	 */
+	public static class RankWritable implements WritableComparable<RankWritable> {
+		private int	query;
+		private int	distance;
+
+		public void set(int query, int distance) {
+			this.query = query;
+			this.distance = distance;
+		}
+
+		public int getQuery() {
+			return query;
+		}
+
+		public int getDistance() {
+			return distance;
+		}
+
+		@Override
+		public void readFields(DataInput dataInput) throws IOException {
+			query = dataInput.readInt();
+			distance = dataInput.readInt();
+		}
+
+		@Override
+		public void write(DataOutput dataOutput) throws IOException {
+			dataOutput.writeInt(query);
+			dataOutput.writeInt(distance);
+		}
+
+		@Override
+		public int compareTo(RankWritable obj) {
+			if (query != obj.query)
+				return Integer.compare(query, obj.query);
+			return Integer.compare(distance, obj.distance);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof RankWritable))
+				return false;
+			return compareTo((RankWritable) obj) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * query + distance;
+		}
+
+		@Override
+		public String toString() {
+			return query + "\t" + distance;
+		}
+
+		/** Compares serialized keys without deserializing them. */
+		public static class Comparator extends WritableComparator {
+			public Comparator() {
+				super(RankWritable.class);
+			}
+
+			@Override
+			public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+				return compareBytes(b1, s1, l1, b2, s2, l2);
+			}
+		}
+
+		/** Groups the keys of one query into a single reduce call. */
+		public static class QueryComparator extends WritableComparator {
+			public QueryComparator() {
+				super(RankWritable.class);
+			}
+
+			@Override
+			public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+				return Integer.compare(readInt(b1, s1), readInt(b2, s2));
+			}
+
+			@SuppressWarnings("rawtypes")
+			@Override
+			public int compare(WritableComparable a, WritableComparable b) {
+				return Integer.compare(((RankWritable) a).query, ((RankWritable) b).query);
+			}
+		}
+
+		static {
+			WritableComparator.define(RankWritable.class, new Comparator());
+		}
+	}
+
+	/** Sends all records of a query to the same reducer. */
+	public static class QueryPartitioner extends Partitioner<RankWritable, Text> {
+		@Override
+		public int getPartition(RankWritable key, Text value, int numPartitions) {
+			return key.getQuery() % numPartitions;
+		}
+	}
+
+	// The query sketches, as packed words
+	private static long[][] readSearchSketches(Configuration conf) throws IOException {
+		URI[] uriList = Job.getInstance(conf).getCacheFiles();
+		Path filePath = new Path(uriList[0].getPath());
+		File configFile = new File(filePath.getName().toString());
+		if (!configFile.exists()) {
+			// Not localized outside a Hadoop task, e.g. in the LocalEngine
+			configFile = new File(uriList[0].getPath());
+		}
+		ObjectInputStream ois = new ObjectInputStream(new FileInputStream(configFile));
+		try {
+			BitSet[] searchSketches = (BitSet[]) ois.readObject();
+			long[][] packed = new long[searchSketches.length][];
+			for (int q = 0; q < searchSketches.length; q++) {
+				packed[q] = searchSketches[q].toLongArray();
+			}
+			return packed;
+		}
+		catch (ClassNotFoundException e) {
+			throw new IOException("Config file mismatch!");
+		}
+		finally {
+			ois.close();
+		}
+	}
+
+	/**
+	 * Sketch key for the shuffle, held as packed long words, least
+	 * significant first. Words above the highest set bit are not
+	 * serialized: a sketch is written as a one byte word count followed by
+	 * its words, most significant first, so that comparing the serialized
+	 * bytes orders sketches the same way as
+	 * {@link #compareTo(BitSetWritable)}.
+	 */
 	public static class BitSetWritable
 			implements Comparable<BitSetWritable>, Writable, WritableComparable<BitSetWritable> {
-		private BitSet data;
+		// Words from numWords on are always zero
+		private long[]	words		= new long[0];
+		private int		numWords;
+
+		/**
+		 * Uses the given words as the sketch, without copying them.
+		 */
+		public void set(long[] toSet) {
+			this.words = toSet;
+			this.numWords = usedWords(toSet, toSet.length);
+		}
 
 		public void set(BitSet toSet) {
-			this.data = toSet;
+			set(toSet.toLongArray());
+		}
+
+		/**
+		 * @return The packed words of the sketch. The array may be longer
+		 *         than the sketch, in which case the extra words are zero.
+		 */
+		public long[] words() {
+			return words;
 		}
 
 		public BitSet get() {
-			return this.data;
+			return BitSet.valueOf(Arrays.copyOf(words, numWords));
 		}
 
 		@Override
 		public String toString() {
-			return data.toString();
+			return get().toString();
 		}
 
 		@Override
 		public void readFields(DataInput dataInput) throws IOException {
-			int arrLen = dataInput.readInt();
-			byte[] byteDataArr = new byte[arrLen];
-			dataInput.readFully(byteDataArr);
-			ByteArrayInputStream bis = new ByteArrayInputStream(byteDataArr);
-			ObjectInput in = new ObjectInputStream(bis);
-			try {
-				data = (BitSet) in.readObject();
+			int count = dataInput.readUnsignedByte();
+			if (words.length < count) {
+				words = new long[count];
 			}
-			catch (ClassNotFoundException e) {
-				e.printStackTrace();
+			for (int i = count - 1; i >= 0; i--) {
+				words[i] = dataInput.readLong();
 			}
-			bis.close();
-			in.close();
+			Arrays.fill(words, count, words.length, 0L);
+			numWords = usedWords(words, count);
 		}
 
 		@Override
 		public void write(DataOutput dataOutput) throws IOException {
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			ObjectOutput out = new ObjectOutputStream(bos);
-			out.writeObject(data);
-			byte[] byteDataArr = bos.toByteArray();
-			out.close();
-			bos.close();
-			dataOutput.writeInt(byteDataArr.length);
-			dataOutput.write(byteDataArr);
+			if (numWords > 0xFF) { throw new IOException("Sketch too long to serialize: " + numWords + " words"); }
+			dataOutput.writeByte(numWords);
+			for (int i = numWords - 1; i >= 0; i--) {
+				dataOutput.writeLong(words[i]);
+			}
 		}
 
 		@Override
 		public int compareTo(BitSetWritable obj) {
-			BitSet rhs = ((BitSetWritable) obj).get();
-			if (data.equals(rhs))
-				return 0;
-			if (data.length() != rhs.length())
-				return data.length() > rhs.length() ? 1 : -1;
-			BitSet xor = (BitSet) data.clone();
-			xor.xor(rhs);
-			int firstDifferent = xor.length() - 1;
-			return data.get(firstDifferent) ? 1 : -1;
+			if (numWords != obj.numWords)
+				return numWords > obj.numWords ? 1 : -1;
+			for (int i = numWords - 1; i >= 0; i--) {
+				if (words[i] != obj.words[i])
+					return Long.compareUnsigned(words[i], obj.words[i]);
+			}
+			return 0;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof BitSetWritable))
+				return false;
+			return compareTo((BitSetWritable) obj) == 0;
+		}
+
+		// Same hash as BitSet, so keys are partitioned as before
+		@Override
+		public int hashCode() {
+			long h = 1234;
+			for (int i = numWords - 1; i >= 0; i--) {
+				h ^= words[i] * (i + 1);
+			}
+			return (int) ((h >> 32) ^ h);
+		}
+
+		private static int usedWords(long[] words, int count) {
+			while (count > 0 && words[count - 1] == 0) {
+				count--;
+			}
+			return count;
+		}
+
+		/** Compares serialized sketches without deserializing them. */
+		public static class Comparator extends WritableComparator {
+			public Comparator() {
+				super(BitSetWritable.class);
+			}
+
+			@Override
+			public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+				int numWords1 = b1[s1] & 0xFF;
+				int numWords2 = b2[s2] & 0xFF;
+				if (numWords1 != numWords2)
+					return numWords1 > numWords2 ? 1 : -1;
+				return compareBytes(b1, s1 + 1, l1 - 1, b2, s2 + 1, l2 - 1);
+			}
+		}
+
+		static {
+			WritableComparator.define(BitSetWritable.class, new Comparator());
 		}
 	}
 
-	private static File createConfigFile(BitSet[] hashFunction, BitSet searchSketch)
-			throws IOException, FileNotFoundException {
+	private static File createConfigFile(BitSet[] searchSketches) throws IOException, FileNotFoundException {
 		File configFile = File.createTempFile("searchConfig", ".tmp");
 		configFile.deleteOnExit();
 		ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(configFile));
-		oos.writeObject(searchSketch);
-		oos.writeObject(hashFunction);
+		oos.writeObject(searchSketches);
 		oos.close();
 		return configFile;
 	}
 
-	private static BitSet[] generateRandomHash(HashSet<BitSet> generatedHistory, int numOfNewHash) {
+	/**
+	 * Estimates the cosine similarity of two vectors from the Hamming
+	 * distance of their sketches.
+	 * 
+	 * @param sketch
+	 *            Sketch of the first vector.
+	 * @param other
+	 *            Sketch of the second vector.
+	 * @param sketchLength
+	 *            Number of hyperplanes both sketches were built with.
+	 * @return The similarity, ranging from -1.0 to 1.0
+	 */
+	static double similarity(BitSet sketch, BitSet other, int sketchLength) {
+		double hammingDist = HammingSimilarity.distance(sketch.toLongArray(), other.toLongArray());
+		return Math.cos((hammingDist / sketchLength) * Math.PI);
+	}
+
+	/**
+	 * Generates distinct random hyperplanes. The same seed and parameters
+	 * always give the same hyperplanes, so the hash function is defined by
+	 * them alone.
+	 * 
+	 * @param seed
+	 *            Seed of the random generator.
+	 * @param vectorLength
+	 *            Number of dimensions of the hashed vectors.
+	 * @param numOfNewHash
+	 *            Number of hyperplanes.
+	 * @return The normal vectors of the hyperplanes.
+	 */
+	static BitSet[] generateRandomHash(long seed, int vectorLength, int numOfNewHash) {
+		Random random = new Random(seed);
+		HashSet<BitSet> generatedHistory = new HashSet<BitSet>();
+		long[] words = new long[(vectorLength + Long.SIZE - 1) / Long.SIZE];
 		int i = 0;
 		BitSet[] newHashFunction = new BitSet[numOfNewHash];
 		while (i < numOfNewHash) {
-			BitSet newHash = new BitSet(VECTOR_LENGTH);
-			for (int b = 0; b < VECTOR_LENGTH; b++) {
-				if (Math.random() > 0.5)
-					newHash.set(b);
+			for (int w = 0; w < words.length; w++) {
+				words[w] = random.nextLong();
 			}
+			BitSet newHash = BitSet.valueOf(words);
+			newHash.clear(vectorLength, words.length * Long.SIZE);
 			boolean success = generatedHistory.add(newHash);
 			if (success) {
 				newHashFunction[i] = newHash;
@@ -258,6 +625,38 @@ public class CosLsh {
 		return newHashFunction;
 	}
 
+	/**
+	 * Number of long words holding a sketch of the given length.
+	 */
+	static int sketchWords(int sketchLength) {
+		return (sketchLength + Long.SIZE - 1) / Long.SIZE;
+	}
+
+	/**
+	 * Compresses the map output of a job with the built-in deflate codec,
+	 * which every task node supports, unless a codec is set in the
+	 * configuration. Set mapreduce.map.output.compress.codec to
+	 * SnappyCodec on clusters whose nodes all have the native library.
+	 */
+	static void compressMapOutput(Configuration conf) {
+		conf.setBoolean(MRJobConfig.MAP_OUTPUT_COMPRESS, true);
+		if (conf.get(MRJobConfig.MAP_OUTPUT_COMPRESS_CODEC) == null) {
+			conf.setClass(MRJobConfig.MAP_OUTPUT_COMPRESS_CODEC, DefaultCodec.class, CompressionCodec.class);
+		}
+	}
+
+	/**
+	 * Packs the normal vectors of a hash function into long words, the form
+	 * {@link #calculateSketch(double[], int, long[][], long[])} works on.
+	 */
+	static long[][] packHyperplanes(BitSet[] hashFunction) {
+		long[][] packed = new long[hashFunction.length][];
+		for (int i = 0; i < hashFunction.length; i++) {
+			packed[i] = hashFunction[i].toLongArray();
+		}
+		return packed;
+	}
+
 	/**
 	 * Calculates the LSH sketch of a given vector using the given hash
 	 * function. This LSH uses the random project method.
@@ -268,87 +667,177 @@ public class CosLsh {
 	 *            An array containing normal vectors of random hyperplanes.
 	 * @return The sketch of the vector with the same length as hashFunction.
 	 */
-	private static BitSet calculateHash(double[] vect, BitSet[] hashFunction) {
-		BitSet sketch = new BitSet(hashFunction.length);
-		double dot_product = 0;
+	static BitSet calculateHash(double[] vect, BitSet[] hashFunction) {
+		long[] sketch = new long[sketchWords(hashFunction.length)];
+		new SignSketcher(packHyperplanes(hashFunction)).sketch(vect, vect.length, sketch);
+		return BitSet.valueOf(sketch);
+	}
+
+	/**
+	 * Calculates the sketch of a vector stored in the first length elements
+	 * of a reused array into packed words.
+	 * 
+	 * @param hashFunction
+	 *            Normal vectors of the hyperplanes, packed by
+	 *            {@link #packHyperplanes(BitSet[])}.
+	 * @param sketch
+	 *            Receives the sketch, at least
+	 *            sketchWords(hashFunction.length) words.
+	 */
+	static void calculateSketch(double[] vect, int length, long[][] hashFunction, long[] sketch) {
+		double sum = 0;
+		for (int b = 0; b < length; b++) {
+			sum += vect[b];
+		}
+		Arrays.fill(sketch, 0L);
 		for (int i = 0; i < hashFunction.length; i++) {
 			// The sketch contains a set bit(1) if the vector is pointing
 			// in the same direction as the normal vector(positive space)
 			// and a 0 bit otherwise.
-			if (isSameDirection(vect, hashFunction[i]))
-				sketch.set(i);
+			if (isSameDirection(vect, length, hashFunction[i], sum))
+				sketch[i >>> 6] |= 1L << i;
 		}
-		return sketch;
 	}
 
 	/**
 	 * 
 	 * @param vect
 	 *            The vector to be compared.
+	 * @param length
+	 *            Number of dimensions of the vector.
 	 * @param normalVect
-	 *            Each true bit in the normalVect BitSet represents a value of
-	 *            +1 , and each false bit represents a value of -1
+	 *            Each set bit in the packed words represents a value of +1,
+	 *            and each clear bit represents a value of -1
+	 * @param sum
+	 *            Sum of the components of the vector.
 	 * @return true if the vector is pointing in the same direction as the
 	 *         normal vector(positive space), false otherwise
 	 */
-	private static boolean isSameDirection(double[] vect, BitSet normalVect) {
-		double dot_product = 0;
-		// Each true bit represents +1 in normal vector value, and each
-		// false bit represents a -1
-		for (int b = 0; b < VECTOR_LENGTH; b++) {
-			if (normalVect.get(b)) {
-				dot_product += vect[b];
+	private static boolean isSameDirection(double[] vect, int length, long[] normalVect, double sum) {
+		// The dot product is the sum over set bits minus the sum over clear
+		// bits, i.e. twice the sum over set bits minus the total
+		double positive = 0;
+		int numWords = Math.min(normalVect.length, sketchWords(length));
+		for (int w = 0; w < numWords; w++) {
+			long word = normalVect[w];
+			if (w == length >>> 6) {
+				word &= (1L << length) - 1;
 			}
-			else {
-				dot_product -= vect[b];
+			while (word != 0) {
+				positive += vect[(w << 6) + Long.numberOfTrailingZeros(word)];
+				word &= word - 1;
 			}
 		}
-		return dot_product >= 0;
+		return 2 * positive - sum >= 0;
 	}
 
-	private static double[] parseDoubleArr(String[] strArr) {
-		int len = strArr.length;
-		double[] parsedArr = new double[len];
-		for (int i = 0; i < len; i++) {
-			parsedArr[i] = Double.parseDouble(strArr[i].split(":")[1]);
-		}
-		return parsedArr;
+	static double[] parseDoubleArr(String vector, char separator) {
+		SparseVector parsed = new SparseVector();
+		parsed.parse(vector, separator);
+		return Arrays.copyOf(parsed.values(), parsed.size());
 	}
 
 	public static void main(String[] args)
 			throws IllegalArgumentException, IOException, ClassNotFoundException, InterruptedException {
 		long number_of_neighbours = Long.MAX_VALUE;
 		if (args.length < 3) {
-			System.err.println("Usage : hadoop jar lsh.jar CosLsh input output searchVectorFile");
+			System.err.println("Usage : hadoop jar lsh.jar CosLsh input output searchVectorFile [-batch (tag results with the 0-based index of the non-empty query line)] [-seed seed] [-l sketch length] [-k top k] [-t threshold] [-local]");
 			System.exit(1);
 		}
+		boolean batch = false;
+		boolean local = false;
+		int topK = 0;
+		long seed = new Random().nextLong();
+		for (int i = 3; i < args.length; i++) {
+			switch (args[i]) {
+				case "-batch":
+					batch = true;
+					break;
+				case "-seed":
+					seed = Long.parseLong(args[++i]);
+					break;
+				case "-l":
+					SKETCH_LENGTH = Integer.parseInt(args[++i]);
+					break;
+				case "-local":
+					local = true;
+					break;
+				case "-k":
+					topK = Integer.parseInt(args[++i]);
+					break;
+				case "-t":
+					threshold = Double.parseDouble(args[++i]);
+					break;
+			}
+		}
+		ArrayList<double[]> searchVectors = new ArrayList<double[]>();
 		BufferedReader br = new BufferedReader(new FileReader(args[2]));
-		String searchTerm = br.readLine();
-		double[] searchVector = parseDoubleArr(searchTerm.split(","));
-		BitSet[] hashFunction = generateRandomHash(usedHashes, SKETCH_LENGTH);
-		BitSet searchSketch = calculateHash(searchVector, hashFunction);
-		File configFile = createConfigFile(hashFunction, searchSketch);
-		VECTOR_LENGTH = searchVector.length;
+		String searchTerm;
+		while ((searchTerm = br.readLine()) != null) {
+			if (searchTerm.isEmpty())
+				continue;
+			searchVectors.add(parseDoubleArr(searchTerm, ','));
+			if (!batch)
+				break;
+		}
+		br.close();
+		VECTOR_LENGTH = searchVectors.get(0).length;
+		BitSet[] hashFunction = generateRandomHash(seed, VECTOR_LENGTH, SKETCH_LENGTH);
+		BitSet[] searchSketches = new BitSet[searchVectors.size()];
+		for (int q = 0; q < searchSketches.length; q++) {
+			searchSketches[q] = calculateHash(searchVectors.get(q), hashFunction);
+		}
+		File configFile = createConfigFile(searchSketches);
 		Configuration conf = new Configuration();
+		conf.setBoolean(BATCH_KEY, batch);
+		conf.setLong(SEED_KEY, seed);
+		conf.setInt(VECTOR_LENGTH_KEY, VECTOR_LENGTH);
+		conf.setInt(SKETCH_LENGTH_KEY, SKETCH_LENGTH);
+		conf.setInt(TOP_K_KEY, topK);
+		conf.setDouble(THRESHOLD_KEY, threshold);
+		compressMapOutput(conf);
 		Job job = Job.getInstance(conf);
 		job.addCacheFile(configFile.toURI());
 		job.setJarByClass(CosLsh.class);
-		job.setMapperClass(TokenizerMapper.class);
-		job.setMapOutputKeyClass(BitSetWritable.class);
-		job.setCombinerClass(MyCombiner.class);
-		job.setReducerClass(MyReducer.class);
+		if (topK > 0) {
+			// Ranked by query and similarity in the shuffle
+			job.setMapperClass(TopKMapper.class);
+			job.setMapOutputKeyClass(RankWritable.class);
+			job.setMapOutputValueClass(Text.class);
+			job.setPartitionerClass(QueryPartitioner.class);
+			job.setSortComparatorClass(RankWritable.Comparator.class);
+			job.setGroupingComparatorClass(RankWritable.QueryComparator.class);
+			job.setReducerClass(TopKReducer.class);
+		}
+		else {
+			job.setMapperClass(TokenizerMapper.class);
+			job.setMapOutputKeyClass(BitSetWritable.class);
+			job.setCombinerClass(MyCombiner.class);
+			job.setReducerClass(MyReducer.class);
+		}
 		job.setOutputKeyClass(DoubleWritable.class);
 		job.setOutputValueClass(Text.class);
-		FileInputFormat.addInputPath(job, new Path(args[0]));
+		BinaryVectorInputFormat.setInput(job, args[0]);
 		FileOutputFormat.setOutputPath(job, new Path(args[1]));
-		if (job.waitForCompletion(true)) {
-			System.out.println(searchSketch.toString());
-			number_of_neighbours = job.getCounters()
-					.findCounter("org.apache.hadoop.mapred.Task$Counter", "REDUCE_OUTPUT_RECORDS").getValue();
+		Counters counters;
+		if (local) {
+			counters = LocalEngine.run(job);
 		}
 		else {
-			System.exit(1);
+			if (!job.waitForCompletion(true)) {
+				System.exit(1);
+			}
+			counters = job.getCounters();
+		}
+		if (batch) {
+			System.out.println(searchSketches.length + " queries");
+		}
+		else {
+			System.out.println(searchSketches[0].toString());
 		}
+		number_of_neighbours = counters.findCounter(TaskCounter.REDUCE_OUTPUT_RECORDS).getValue();
+		System.out.println(number_of_neighbours + " results, " + counters.findCounter(LshCounter.RECORDS).getValue()
+				+ " records hashed in " + counters.findCounter(LshCounter.HASH_MILLIS).getValue() + " ms");
 	}
 
 }
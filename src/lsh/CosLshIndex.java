@@ -0,0 +1,432 @@
+package lsh;
+import java.io.BufferedReader;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MapFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.partition.HashPartitioner;
+
+/**
+ * Banded cosine LSH index. Every vector is hashed into a sketch of
+ * tables * bits hyperplanes, which is cut into one band of bits per table.
+ * The build job writes each vector under all of its band keys into a
+ * MapFile index, and a query only looks up the buckets that its own bands
+ * fall into. More tables raise recall, more bits per band make buckets
+ * smaller and queries cheaper.
+ */
+public class CosLshIndex {
+	public static int	TABLES			= 8;
+	public static int	BITS_PER_TABLE	= 16;
+	public static int	VECTOR_LENGTH;
+
+	public static final String	TABLES_KEY			= "lsh.cos.index.tables";
+	public static final String	BITS_PER_TABLE_KEY	= "lsh.cos.index.bits";
+
+	public static class BandIndexMapper extends Mapper<Object, Writable, BandKeyWritable, SketchEntryWritable> {
+
+		private BandKeyWritable		bandKey		= new BandKeyWritable();
+		private SketchEntryWritable	sketchEntry	= new SketchEntryWritable();
+		private Text				classification	= new Text();
+		private SparseVector		inputVector		= new SparseVector();
+
+		private int					tables;
+		private int					bitsPerTable;
+		private SignSketcher		sketcher;
+		private long[]				sketch;
+
+		@Override
+		protected void setup(Mapper<Object, Writable, BandKeyWritable, SketchEntryWritable>.Context context)
+				throws IOException, InterruptedException {
+			super.setup(context);
+			Configuration conf = context.getConfiguration();
+			this.tables = conf.getInt(TABLES_KEY, TABLES);
+			this.bitsPerTable = conf.getInt(BITS_PER_TABLE_KEY, BITS_PER_TABLE);
+			this.sketcher = new SignSketcher(CosLsh.packHyperplanes(CosLsh.generateRandomHash(conf.getLong(
+					CosLsh.SEED_KEY, 0), conf.getInt(CosLsh.VECTOR_LENGTH_KEY, 0), tables * bitsPerTable)));
+			this.sketch = new long[CosLsh.sketchWords(tables * bitsPerTable)];
+		}
+
+		@Override
+		public void map(Object key, Writable value, Context context) throws IOException, InterruptedException {
+			SparseVector vector = BinaryVectorInputFormat.readRecord(key, value, '/', inputVector, classification);
+			sketcher.sketch(vector.values(), vector.size(), sketch);
+			BitSet inputSketch = BitSet.valueOf(sketch);
+			sketchEntry.set(inputSketch, classification);
+			for (int t = 0; t < tables; t++) {
+				bandKey.set(t, band(inputSketch, t, bitsPerTable));
+				context.write(bandKey, sketchEntry);
+			}
+		}
+	}
+
+	/**
+	 * Key of one bucket: the table number and the bits of the sketch that
+	 * fall into that table's band.
+	 */
+	public static class BandKeyWritable implements WritableComparable<BandKeyWritable> {
+		private int		table;
+		private long	band;
+
+		public void set(int table, long band) {
+			this.table = table;
+			this.band = band;
+		}
+
+		public int getTable() {
+			return table;
+		}
+
+		public long getBand() {
+			return band;
+		}
+
+		@Override
+		public void readFields(DataInput dataInput) throws IOException {
+			table = dataInput.readInt();
+			band = dataInput.readLong();
+		}
+
+		@Override
+		public void write(DataOutput dataOutput) throws IOException {
+			dataOutput.writeInt(table);
+			dataOutput.writeLong(band);
+		}
+
+		@Override
+		public int compareTo(BandKeyWritable other) {
+			if (table != other.table)
+				return table > other.table ? 1 : -1;
+			return Long.compareUnsigned(band, other.band);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof BandKeyWritable))
+				return false;
+			BandKeyWritable other = (BandKeyWritable) obj;
+			return table == other.table && band == other.band;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * table + (int) (band ^ (band >>> 32));
+		}
+
+		@Override
+		public String toString() {
+			return table + ":" + Long.toHexString(band);
+		}
+
+		/** Table and band are written big-endian, so plain byte order matches compareTo. */
+		public static class Comparator extends WritableComparator {
+			public Comparator() {
+				super(BandKeyWritable.class);
+			}
+
+			@Override
+			public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+				return compareBytes(b1, s1, l1, b2, s2, l2);
+			}
+		}
+
+		static {
+			WritableComparator.define(BandKeyWritable.class, new Comparator());
+		}
+	}
+
+	/**
+	 * Bucket entry: the full sketch of the vector, used to rank candidates,
+	 * and its classification.
+	 */
+	public static class SketchEntryWritable implements Writable {
+		private CosLsh.BitSetWritable	sketch			= new CosLsh.BitSetWritable();
+		private Text					classification	= new Text();
+
+		public void set(BitSet sketch, Text classification) {
+			this.sketch.set(sketch);
+			this.classification.set(classification);
+		}
+
+		public BitSet getSketch() {
+			return sketch.get();
+		}
+
+		// The sketch as packed words, without copying
+		public long[] getSketchWords() {
+			return sketch.words();
+		}
+
+		public String getClassification() {
+			return classification.toString();
+		}
+
+		@Override
+		public void readFields(DataInput dataInput) throws IOException {
+			sketch.readFields(dataInput);
+			classification.readFields(dataInput);
+		}
+
+		@Override
+		public void write(DataOutput dataOutput) throws IOException {
+			sketch.write(dataOutput);
+			classification.write(dataOutput);
+		}
+
+		@Override
+		public String toString() {
+			return classification.toString();
+		}
+	}
+
+	private static class Candidate implements Comparable<Candidate> {
+		public double	similarity;
+		public String	classification;
+
+		public Candidate(double similarity, String classification) {
+			this.similarity = similarity;
+			this.classification = classification;
+		}
+
+		@Override
+		public int compareTo(Candidate other) {
+			return Double.compare(other.similarity, this.similarity);
+		}
+	}
+
+	/**
+	 * Extracts the band of the given table from a sketch.
+	 *
+	 * @param sketch
+	 *            The full sketch of tables * bitsPerTable bits.
+	 * @param table
+	 *            The table whose band is wanted.
+	 * @param bitsPerTable
+	 *            Number of bits in each band, at most 64.
+	 * @return The band bits packed into a long.
+	 */
+	static long band(BitSet sketch, int table, int bitsPerTable) {
+		long band = 0;
+		int offset = table * bitsPerTable;
+		for (int b = 0; b < bitsPerTable; b++) {
+			if (sketch.get(offset + b))
+				band |= 1L << b;
+		}
+		return band;
+	}
+
+	/**
+	 * @return The first table in which both sketches share a band, or -1 if
+	 *         they never collide.
+	 */
+	static int firstCollision(BitSet sketch, BitSet other, int tables, int bitsPerTable) {
+		for (int t = 0; t < tables; t++) {
+			if (band(sketch, t, bitsPerTable) == band(other, t, bitsPerTable))
+				return t;
+		}
+		return -1;
+	}
+
+	/**
+	 * Opens one reader per reduce partition of the index, in partition
+	 * order. Job markers such as _SUCCESS are skipped.
+	 */
+	private static MapFile.Reader[] openIndex(Path indexPath, Configuration conf) throws IOException {
+		FileSystem fs = indexPath.getFileSystem(conf);
+		FileStatus[] parts = fs.listStatus(indexPath, new PathFilter() {
+			@Override
+			public boolean accept(Path path) {
+				String name = path.getName();
+				return !name.startsWith("_") && !name.startsWith(".");
+			}
+		});
+		Arrays.sort(parts);
+		MapFile.Reader[] readers = new MapFile.Reader[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			readers[i] = new MapFile.Reader(parts[i].getPath(), conf);
+		}
+		return readers;
+	}
+
+	/**
+	 * Saves the parameters that define the hash function: tables, bits per
+	 * table, seed and number of features.
+	 */
+	private static File createHashFile(long seed, String hashFileName) throws IOException {
+		File hashFile = new File(hashFileName);
+		if (hashFile.exists()) { throw new FileAlreadyExistsException(
+				"Hash function file already exist. Please use a new name."); }
+		hashFile.createNewFile();
+		DataOutputStream dos = new DataOutputStream(new FileOutputStream(hashFile));
+		dos.writeInt(TABLES);
+		dos.writeInt(BITS_PER_TABLE);
+		dos.writeLong(seed);
+		dos.writeInt(VECTOR_LENGTH);
+		dos.close();
+		return hashFile;
+	}
+
+	private static void buildIndex(String input, String indexDir, String hashFileName, long seed)
+			throws IOException, ClassNotFoundException, InterruptedException {
+		if (VECTOR_LENGTH <= 0) { throw new IllegalArgumentException("Number of features (-f) is required"); }
+		if (BITS_PER_TABLE < 1 || BITS_PER_TABLE > Long.SIZE) { throw new IllegalArgumentException(
+				"Bits per table must be between 1 and " + Long.SIZE); }
+		createHashFile(seed, hashFileName);
+		Configuration conf = new Configuration();
+		conf.setInt(TABLES_KEY, TABLES);
+		conf.setInt(BITS_PER_TABLE_KEY, BITS_PER_TABLE);
+		conf.setLong(CosLsh.SEED_KEY, seed);
+		conf.setInt(CosLsh.VECTOR_LENGTH_KEY, VECTOR_LENGTH);
+		CosLsh.compressMapOutput(conf);
+		Job job = Job.getInstance(conf);
+		job.setJarByClass(CosLshIndex.class);
+		job.setMapperClass(BandIndexMapper.class);
+		job.setReducerClass(Reducer.class);
+		job.setPartitionerClass(HashPartitioner.class);
+		job.setOutputKeyClass(BandKeyWritable.class);
+		job.setOutputValueClass(SketchEntryWritable.class);
+		job.setOutputFormatClass(MapFileOutputFormat.class);
+		BinaryVectorInputFormat.setInput(job, input);
+		FileOutputFormat.setOutputPath(job, new Path(indexDir));
+		if (!job.waitForCompletion(true)) {
+			System.exit(1);
+		}
+	}
+
+	private static void query(String indexDir, String hashFileName, String searchFile, String outputFileName,
+			double threshold) throws IOException {
+		int tables;
+		int bitsPerTable;
+		BitSet[] hashFunction;
+		DataInputStream dis = new DataInputStream(new FileInputStream(hashFileName));
+		try {
+			tables = dis.readInt();
+			bitsPerTable = dis.readInt();
+			long seed = dis.readLong();
+			int vectorLength = dis.readInt();
+			hashFunction = CosLsh.generateRandomHash(seed, vectorLength, tables * bitsPerTable);
+		}
+		finally {
+			dis.close();
+		}
+		BufferedReader br = new BufferedReader(new FileReader(searchFile));
+		String searchTerm = br.readLine();
+		br.close();
+		BitSet searchSketch = CosLsh.calculateHash(CosLsh.parseDoubleArr(searchTerm, ','), hashFunction);
+
+		Configuration conf = new Configuration();
+		Path indexPath = new Path(indexDir);
+		MapFile.Reader[] readers = openIndex(indexPath, conf);
+		HashPartitioner<BandKeyWritable, SketchEntryWritable> partitioner = new HashPartitioner<BandKeyWritable, SketchEntryWritable>();
+		ArrayList<Candidate> candidates = new ArrayList<Candidate>();
+		HammingSimilarity similarityTable = new HammingSimilarity(tables * bitsPerTable);
+		int maxDistance = similarityTable.maxDistance(threshold);
+		long[] searchWords = searchSketch.toLongArray();
+		BandKeyWritable searchKey = new BandKeyWritable();
+		BandKeyWritable foundKey = new BandKeyWritable();
+		SketchEntryWritable foundEntry = new SketchEntryWritable();
+		try {
+			for (int t = 0; t < tables; t++) {
+				searchKey.set(t, band(searchSketch, t, bitsPerTable));
+				MapFile.Reader reader = readers[partitioner.getPartition(searchKey, null, readers.length)];
+				// Positions the reader on the first entry of the bucket, if any
+				WritableComparable<?> closest = reader.getClosest(searchKey, foundEntry);
+				if (closest == null || !closest.equals(searchKey))
+					continue;
+				do {
+					BitSet sketch = foundEntry.getSketch();
+					// A vector colliding in several tables is only counted in
+					// the first of them
+					if (firstCollision(searchSketch, sketch, tables, bitsPerTable) == t) {
+						int distance = HammingSimilarity.distance(searchWords, foundEntry.getSketchWords());
+						if (distance <= maxDistance) {
+							candidates.add(new Candidate(similarityTable.similarity(distance), foundEntry
+									.getClassification()));
+						}
+					}
+				} while (reader.next(foundKey, foundEntry) && foundKey.equals(searchKey));
+			}
+		}
+		finally {
+			for (MapFile.Reader reader : readers) {
+				reader.close();
+			}
+		}
+
+		Collections.sort(candidates);
+		FileSystem fs = FileSystem.get(conf);
+		PrintWriter pw = new PrintWriter(fs.create(new Path(outputFileName)));
+		for (Candidate candidate : candidates) {
+			pw.println(candidate.similarity + "\t" + candidate.classification);
+		}
+		pw.close();
+		System.out.println(searchSketch.toString());
+	}
+
+	public static void main(String[] args)
+			throws IllegalArgumentException, IOException, ClassNotFoundException, InterruptedException {
+		boolean build = args.length > 0 && args[0].equals("build");
+		boolean query = args.length > 0 && args[0].equals("query");
+		if (!(build && args.length >= 4) && !(query && args.length >= 5)) {
+			System.err.println("Usage : hadoop jar lsh.jar CosLshIndex build input index_dir save_hash_function_file -f number of features [-l tables] [-k bits per table] [-seed seed]");
+			System.err.println("        hadoop jar lsh.jar CosLshIndex query index_dir hash_function_file searchVectorFile output [-t threshold]");
+			System.exit(1);
+		}
+		int firstOption = build ? 4 : 5;
+		double threshold = -1;
+		long seed = new Random().nextLong();
+		for (int i = firstOption; i < args.length; i++) {
+			switch (args[i]) {
+				case "-l":
+					TABLES = Integer.parseInt(args[++i]);
+					break;
+				case "-k":
+					BITS_PER_TABLE = Integer.parseInt(args[++i]);
+					break;
+				case "-f":
+					VECTOR_LENGTH = Integer.parseInt(args[++i]);
+					break;
+				case "-t":
+					threshold = Double.parseDouble(args[++i]);
+					break;
+				case "-seed":
+					seed = Long.parseLong(args[++i]);
+					break;
+			}
+		}
+		if (build) {
+			buildIndex(args[1], args[2], args[3], seed);
+		}
+		else {
+			query(args[1], args[2], args[3], args[4], threshold);
+		}
+	}
+
+}
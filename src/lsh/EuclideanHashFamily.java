@@ -0,0 +1,209 @@
+package lsh;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Parameters that fully define an EuclideanLsh hash function. The random
+ * projections are regenerated from the seed wherever they are needed, so
+ * only these few numbers are saved to the hash file or passed to tasks
+ * through the job configuration.
+ */
+public class EuclideanHashFamily implements Serializable {
+	private static final long	serialVersionUID		= 1L;
+
+	public static final String	SEED_KEY				= "lsh.euclidean.seed";
+	public static final String	SIGNATURE_LENGTH_KEY	= "lsh.euclidean.signature.length";
+	public static final String	VECTOR_LENGTH_KEY		= "lsh.euclidean.vector.length";
+	public static final String	MULTIPLIER_KEY			= "lsh.euclidean.multiplier";
+	public static final String	BUCKET_WIDTH_KEY		= "lsh.euclidean.bucket.width";
+	// Node-local directory the projections are mapped from, by default
+	// lsh-projections under hadoop.tmp.dir
+	public static final String	PROJECTION_DIRECTORY_KEY	= "lsh.euclidean.projection.directory";
+	// Projections of at least this many bytes are mapped rather than
+	// generated on the heap. Reading mapped weights is slower, so small
+	// projections, cheap to generate, stay on the heap.
+	public static final String	PROJECTION_MAP_BYTES_KEY	= "lsh.euclidean.projection.map.bytes";
+	public static final long	DEFAULT_PROJECTION_MAP_BYTES	= 8L << 20;
+
+	private final long			seed;
+	private final int			signatureLength;
+	private final int			vectorLength;
+	private final int			multiplier;
+	private final int			bucketWidth;
+
+	public EuclideanHashFamily(long seed, int signatureLength, int vectorLength, int multiplier, int bucketWidth) {
+		this.seed = seed;
+		this.signatureLength = signatureLength;
+		this.vectorLength = vectorLength;
+		this.multiplier = multiplier;
+		this.bucketWidth = bucketWidth;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public int getSignatureLength() {
+		return signatureLength;
+	}
+
+	public int getVectorLength() {
+		return vectorLength;
+	}
+
+	public int getMultiplier() {
+		return multiplier;
+	}
+
+	public int getBucketWidth() {
+		return bucketWidth;
+	}
+
+	/**
+	 * Generates the projections of this family. Every position is a random
+	 * vector with components uniform in [-0.5, 0.5), scaled to a length of
+	 * multiplier. The same parameters always give the same projections.
+	 */
+	public HashProjection generate() {
+		float[] scale = scales();
+		Random random = new Random(seed);
+		float[] weights = new float[signatureLength * vectorLength];
+		for (int f = 0; f < vectorLength; f++) {
+			int base = f * signatureLength;
+			for (int h = 0; h < signatureLength; h++) {
+				weights[base + h] = (random.nextFloat() - 0.5f) * scale[h];
+			}
+		}
+		return new HashProjection(signatureLength, vectorLength, weights);
+	}
+
+	// Scale of each position, from a first pass over the random sequence
+	private float[] scales() {
+		Random random = new Random(seed);
+		double[] sumOfSq = new double[signatureLength];
+		for (int f = 0; f < vectorLength; f++) {
+			for (int h = 0; h < signatureLength; h++) {
+				float weight = random.nextFloat() - 0.5f;
+				sumOfSq[h] += weight * weight;
+			}
+		}
+		float[] scale = new float[signatureLength];
+		for (int h = 0; h < signatureLength; h++) {
+			scale[h] = (float) (multiplier / Math.sqrt(sumOfSq[h]));
+		}
+		return scale;
+	}
+
+	/**
+	 * Writes the projections returned by {@link #generate()} to a file as
+	 * raw little-endian floats, in the same order. They are streamed to the
+	 * file and never held in memory.
+	 */
+	public void writeProjections(Path file) throws IOException {
+		float[] scale = scales();
+		Random random = new Random(seed);
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			for (int f = 0; f < vectorLength; f++) {
+				for (int h = 0; h < signatureLength; h++) {
+					if (!buffer.hasRemaining()) {
+						write(channel, buffer);
+					}
+					buffer.putFloat((random.nextFloat() - 0.5f) * scale[h]);
+				}
+			}
+			write(channel, buffer);
+		}
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Name of the projection file of this family. It holds every parameter
+	 * the projections depend on, so families never share a file.
+	 */
+	public String getProjectionFileName() {
+		return String.format("lsh-euclidean-%d-%d-%d-%d.proj", seed, signatureLength, vectorLength, multiplier);
+	}
+
+	/**
+	 * Maps the projections from their file in the given directory, which
+	 * is written first if no task on the node has done so yet. Tasks
+	 * racing to write it each write a temporary file and rename it into
+	 * place; the files are identical, so either one wins.
+	 */
+	public HashProjection mapProjections(Path directory) throws IOException {
+		Path file = directory.resolve(getProjectionFileName());
+		if (!Files.exists(file)) {
+			Files.createDirectories(directory);
+			Path temporary = Files.createTempFile(directory, getProjectionFileName(), ".tmp");
+			try {
+				writeProjections(temporary);
+				Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+			}
+			finally {
+				Files.deleteIfExists(temporary);
+			}
+		}
+		return HashProjection.map(file, signatureLength, vectorLength);
+	}
+
+	/**
+	 * The projections of this family, mapped from the node-local
+	 * projection directory when they reach the configured size and
+	 * generated on the heap otherwise.
+	 */
+	public HashProjection projections(Configuration conf) throws IOException {
+		long bytes = (long) signatureLength * vectorLength * Float.BYTES;
+		if (bytes < conf.getLong(PROJECTION_MAP_BYTES_KEY, DEFAULT_PROJECTION_MAP_BYTES)) {
+			return generate();
+		}
+		return mapProjections(projectionDirectory(conf));
+	}
+
+	public static Path projectionDirectory(Configuration conf) {
+		String directory = conf.get(PROJECTION_DIRECTORY_KEY);
+		if (directory == null) {
+			directory = conf.get("hadoop.tmp.dir") + "/lsh-projections";
+		}
+		return Paths.get(directory);
+	}
+
+	public void toConfiguration(Configuration conf) {
+		conf.setLong(SEED_KEY, seed);
+		conf.setInt(SIGNATURE_LENGTH_KEY, signatureLength);
+		conf.setInt(VECTOR_LENGTH_KEY, vectorLength);
+		conf.setInt(MULTIPLIER_KEY, multiplier);
+		conf.setInt(BUCKET_WIDTH_KEY, bucketWidth);
+	}
+
+	public static EuclideanHashFamily fromConfiguration(Configuration conf) {
+		if (conf.get(SEED_KEY) == null) { throw new IllegalArgumentException("No hash family in the job configuration"); }
+		return new EuclideanHashFamily(conf.getLong(SEED_KEY, 0), conf.getInt(SIGNATURE_LENGTH_KEY, 0), conf.getInt(
+				VECTOR_LENGTH_KEY, 0), conf.getInt(MULTIPLIER_KEY, 0), conf.getInt(BUCKET_WIDTH_KEY, 0));
+	}
+
+	@Override
+	public String toString() {
+		return "seed=" + seed + " signatureLength=" + signatureLength + " vectorLength=" + vectorLength
+				+ " multiplier=" + multiplier + " bucketWidth=" + bucketWidth;
+	}
+}
@@ -5,17 +5,17 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.net.URI;
-import java.nio.file.FileAlreadyExistsException;
-import java.util.HashSet;
+import java.util.Random;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.FileAlreadyExistsException;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
-import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 
@@ -24,111 +24,165 @@ public class EuclideanLsh {
 	private static int	BUCKET_WIDTH		= 20;
 	public static int VECTOR_LENGTH = 61236;
 	public static int MULTIPLIER = 10;
+	// Set to also write every hashed vector to a vector file per task
+	public static final String	VECTORS_KEY	= "lsh.euclidean.vectors";
+	// Set to false to not write a bucket summary per task
+	public static final String	SUMMARY_KEY	= "lsh.euclidean.summary";
+	// Base name of the output files of a job, "part" by default
+	public static final String	OUTPUT_NAME_KEY	= "mapreduce.output.basename";
+	// Directories of signatures appended to an existing output
+	public static final String	SEGMENT_PREFIX	= "segment-";
 
-	public static class HashSignatureMapper extends Mapper<Object, Text, Text, Text> {
+	public static class HashSignatureMapper extends Mapper<Object, Writable, SignatureWritable, Text> {
 
-		private float[][]	hashFunction;
-		private Text		signature	= new Text();
+		private HashProjection	hashFunction;
+		private int				bucketWidth;
+		private double[]		projections;
+		private int[]			buckets;
+		private SignatureWritable	signature	= new SignatureWritable();
+		private Text			fileName	= new Text();
+		private SparseVector	vector		= new SparseVector();
+		private VectorStoreWriter	vectorStore;
+		private BucketSummaryWriter	summary;
+		private long			records;
+		private long			parseNanos;
+		private long			hashNanos;
 
 		@Override
-		protected void setup(Mapper<Object, Text, Text, Text>.Context context)
+		protected void setup(Mapper<Object, Writable, SignatureWritable, Text>.Context context)
 				throws IOException, InterruptedException {
 			super.setup(context);
 			Configuration conf = context.getConfiguration();
-			URI[] uriList = Job.getInstance(conf).getCacheFiles();
-			Path filePath = new Path(uriList[0].getPath());
-			String configFileName = filePath.getName().toString();
-			ObjectInputStream ois = new ObjectInputStream(new FileInputStream(configFileName));
-			try {
-				this.hashFunction = (float[][]) ois.readObject();
-			}
-			catch (ClassNotFoundException e) {
-				ois.close();
-				throw new IOException("Config file mismatch!");
+			// The projections are regenerated from the seed rather than
+			// shipped to every task. Large ones are written once per node
+			// and mapped off-heap.
+			EuclideanHashFamily family = EuclideanHashFamily.fromConfiguration(context.getConfiguration());
+			this.hashFunction = family.projections(context.getConfiguration());
+			this.bucketWidth = family.getBucketWidth();
+			fileName.set(((FileSplit) context.getInputSplit()).getPath().getName());
+			projections = new double[hashFunction.getSignatureLength()];
+			buckets = new int[hashFunction.getSignatureLength()];
+			signature.set(buckets);
+			if (conf.getBoolean(VECTORS_KEY, false)) {
+				// Named after the task's signature file, and committed with it
+				Path file = FileOutputFormat.getPathForWorkFile(context, conf.get(OUTPUT_NAME_KEY, "part"),
+						VectorStoreWriter.EXTENSION);
+				vectorStore = new VectorStoreWriter(file.getFileSystem(conf).create(file, false));
 			}
-			finally {
-				ois.close();
+			if (conf.getBoolean(SUMMARY_KEY, true)) {
+				// Summary blocks line up with the blocks of a compressed
+				// signature file, so a skipped block is never inflated
+				int rowsPerBlock = conf.getInt(BinarySignatureOutputFormat.BLOCK_ROWS_KEY, 0);
+				if (rowsPerBlock <= 0) {
+					rowsPerBlock = BinarySignatureOutputFormat.DEFAULT_BLOCK_ROWS;
+				}
+				Path file = FileOutputFormat.getPathForWorkFile(context, conf.get(OUTPUT_NAME_KEY, "part"),
+						BucketSummaryWriter.EXTENSION);
+				summary = new BucketSummaryWriter(file.getFileSystem(conf).create(file, false), buckets.length,
+						rowsPerBlock);
 			}
 		}
 
 		@Override
-		public void map(Object key, Text value, Context context) throws IOException, InterruptedException {
-			Text fileName = new Text();
-			fileName.set(((FileSplit) context.getInputSplit()).getPath()
-					.getName());
-			String entry = value.toString();
-			int vectStart = entry.indexOf("\t");
-			String vect = entry.substring(vectStart + 1);
-			StringBuilder stringHash = new StringBuilder();
-			for (int i = 0; i < hashFunction.length; i++) {
-				stringHash.append(hashed(vect.split("\t"), hashFunction[i]) + ",");
-			}
-			stringHash.deleteCharAt(stringHash.length() - 1);
-			signature.set(stringHash.toString());
+		public void map(Object key, Writable value, Context context) throws IOException, InterruptedException {
+			// Parse the record once, then hash it against every function
+			// in a single pass over its non-zeros
+			long start = System.nanoTime();
+			SparseVector vector = BinaryVectorInputFormat.readRecord(key, value, '\t', this.vector, null);
+			// A converted record names the file it was converted from
+			BinaryVectorInputFormat.readSource(key, value, fileName);
+			long parsed = System.nanoTime();
+			hashFunction.signature(vector, bucketWidth, projections, buckets);
+			parseNanos += parsed - start;
+			hashNanos += System.nanoTime() - parsed;
+			records++;
 			context.write(signature, fileName);
-		}
-	}
-
-	private static int hashed(String[] sparseVect, float[] hash) {
-		String[] entry;
-		double scalar = 0;
-		int pos;
-		double val;
-		for (int i = 0; i < sparseVect.length; i++) {
-			entry = sparseVect[i].split(":");
-			pos = Integer.parseInt(entry[0]);
-			val = Double.parseDouble(entry[1]);
-			scalar += val * hash[pos - 1]; // index starts from 1
-		}
-		return (int) (scalar / (BUCKET_WIDTH));
-
-	}
-
-	private static float[][] generateRandomHash(HashSet<Double[]> usedHashes, int signatureLength) {
-		float[][] hashes = new float[signatureLength][VECTOR_LENGTH];
-		for (int i = 0; i < signatureLength; i++) {
-			for (int j = 0; j < VECTOR_LENGTH; j++) {
-				hashes[i][j] = ((float) Math.random() - 0.5f);
+			if (vectorStore != null) {
+				vectorStore.write(vector);
 			}
-			normalize(hashes[i]);
-			for (int j = 0; j < VECTOR_LENGTH; j++) {
-				hashes[i][j] *= MULTIPLIER;
+			if (summary != null) {
+				summary.add(buckets);
 			}
 		}
-		return hashes;
-	}
 
-	private static void normalize(float[] vector) {
-		float sumOfSq = 0;
-		for (int i = 0; i < vector.length; i++) {
-			sumOfSq += vector[i];
-		}
-		float magnitude = (float) Math.sqrt(sumOfSq);
-
-		for (int i = 0; i < vector.length; i++) {
-			vector[i] = vector[i] / magnitude;
+		@Override
+		protected void cleanup(Mapper<Object, Writable, SignatureWritable, Text>.Context context)
+				throws IOException, InterruptedException {
+			if (vectorStore != null) {
+				vectorStore.close();
+			}
+			if (summary != null) {
+				summary.close();
+			}
+			LshCounter.addMapperTotals(context, records, parseNanos, hashNanos);
+			super.cleanup(context);
 		}
 	}
 
-	private static File createConfigFile(float[][] hashFunction, String sigFileName) throws IOException {
+	private static File createConfigFile(EuclideanHashFamily family, String sigFileName) throws IOException {
 		File configFile = new File(sigFileName);
 		if (configFile.exists()) { throw new FileAlreadyExistsException(
 				"Hash function file already exist. Please use a new name."); }
 		configFile.createNewFile();
 		ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(configFile));
-		oos.writeObject(hashFunction);
-		oos.writeInt(BUCKET_WIDTH);
+		oos.writeObject(family);
 		oos.close();
 		return configFile;
 	}
 
+	private static EuclideanHashFamily readConfigFile(String sigFileName) throws IOException, ClassNotFoundException {
+		ObjectInputStream ois = new ObjectInputStream(new FileInputStream(sigFileName));
+		try {
+			Object saved = ois.readObject();
+			if (!(saved instanceof EuclideanHashFamily)) { throw new IOException(
+					"Hash function file holds a whole matrix and cannot be appended to."); }
+			return (EuclideanHashFamily) saved;
+		}
+		finally {
+			ois.close();
+		}
+	}
+
+	/**
+	 * Name of the next segment of a signature directory, one past the
+	 * highest existing segment, including a segment still being built by
+	 * SegmentCompactor under a name starting with "_".
+	 */
+	public static String nextSegment(Path output, Configuration conf) throws IOException {
+		FileSystem fs = output.getFileSystem(conf);
+		int next = 0;
+		if (fs.exists(output)) {
+			for (FileStatus status : fs.listStatus(output)) {
+				String name = status.getPath().getName();
+				if (name.startsWith("_")) {
+					name = name.substring(1);
+				}
+				if (status.isDirectory() && name.startsWith(SEGMENT_PREFIX)) {
+					try {
+						next = Math.max(next, Integer.parseInt(name.substring(SEGMENT_PREFIX.length())) + 1);
+					}
+					catch (NumberFormatException e) {
+						// Not a segment written by this job
+					}
+				}
+			}
+		}
+		return String.format("%s%05d", SEGMENT_PREFIX, next);
+	}
+
 	public static void main(String[] args)
 			throws IllegalArgumentException, IOException, ClassNotFoundException, InterruptedException {
 		if (args.length < 3) {
 			System.err.println(
-					"Usage : hadoop jar lsh.jar EuclideanLsh input output save_hash_function_file [-s signature length] [-b bucket width] [-f number of features] [-m multiplier]");
+					"Usage : hadoop jar lsh.jar EuclideanLsh input[,input...] output save_hash_function_file [-s signature length] [-b bucket width] [-f number of features] [-m multiplier] [-seed seed] [-binary] [-compress] [-vectors] [-local] [-append]");
 			System.exit(1);
 		}
+		long seed = new Random().nextLong();
+		boolean binary = false;
+		boolean compress = false;
+		boolean vectors = false;
+		boolean local = false;
+		boolean append = false;
 		if (args.length > 3) {
 			for (int i = 3; i < args.length; i++) {
 				switch (args[i]) {
@@ -145,29 +199,80 @@ public class EuclideanLsh {
 					case "-m":
 						MULTIPLIER = Integer.parseInt(args[++i]);
 						break;
+					case "-seed":
+						seed = Long.parseLong(args[++i]);
+						break;
+					case "-binary":
+						binary = true;
+						break;
+					case "-compress":
+						binary = true;
+						compress = true;
+						break;
+					case "-vectors":
+						vectors = true;
+						break;
+					case "-local":
+						local = true;
+						break;
+					case "-append":
+						append = true;
+						break;
 				}
 			}
 		}
 
-		HashSet<Double[]> usedHashes = new HashSet<Double[]>();
-		float[][] hashFunction = generateRandomHash(usedHashes, SIGNATURE_LENGTH);
-		File configFile = createConfigFile(hashFunction, args[2]);
-		hashFunction = null;
-		Configuration conf = new Configuration();
-		Job job = Job.getInstance(conf);
-		job.addCacheFile(configFile.toURI());
-		job.setJarByClass(EuclideanLsh.class);
-		job.setMapperClass(HashSignatureMapper.class);
-		job.setNumReduceTasks(0);
-		job.setOutputKeyClass(Text.class);
-		job.setOutputValueClass(NullWritable.class);
-		FileInputFormat.addInputPath(job, new Path(args[0]));
-		FileOutputFormat.setOutputPath(job, new Path(args[1]));
-		if (job.waitForCompletion(true)) {
-			System.exit(0);
+		EuclideanHashFamily family;
+		if (append && new File(args[2]).exists()) {
+			// New data is hashed with the saved family, so its signatures
+			// can be searched together with the existing ones
+			family = readConfigFile(args[2]);
 		}
 		else {
-			System.exit(1);
+			family = new EuclideanHashFamily(seed, SIGNATURE_LENGTH, VECTOR_LENGTH, MULTIPLIER, BUCKET_WIDTH);
+			createConfigFile(family, args[2]);
+		}
+		Configuration conf = new Configuration();
+		family.toConfiguration(conf);
+		conf.setBoolean(VECTORS_KEY, vectors);
+		if (compress) {
+			conf.setInt(BinarySignatureOutputFormat.BLOCK_ROWS_KEY, conf.getInt(
+					BinarySignatureOutputFormat.BLOCK_ROWS_KEY, BinarySignatureOutputFormat.DEFAULT_BLOCK_ROWS));
+		}
+		while (true) {
+			Path output = new Path(args[1]);
+			if (append) {
+				// Appended signatures go to a new segment of the output, with
+				// file names unique across segments
+				String segment = nextSegment(output, conf);
+				output = new Path(output, segment);
+				conf.set(OUTPUT_NAME_KEY, segment);
+			}
+			Job job = Job.getInstance(conf);
+			job.setJarByClass(EuclideanLsh.class);
+			job.setMapperClass(HashSignatureMapper.class);
+			job.setNumReduceTasks(0);
+			job.setOutputKeyClass(SignatureWritable.class);
+			job.setOutputValueClass(Text.class);
+			if (binary) {
+				job.setOutputFormatClass(BinarySignatureOutputFormat.class);
+			}
+			BinaryVectorInputFormat.setInput(job, args[0]);
+			FileOutputFormat.setOutputPath(job, output);
+			try {
+				if (local) {
+					LocalEngine.run(job);
+					System.exit(0);
+				}
+				System.exit(job.waitForCompletion(true) ? 0 : 1);
+			}
+			catch (FileAlreadyExistsException e) {
+				// A compaction finishing in between took the segment name,
+				// so the job is submitted again for the next one
+				if (!append) {
+					throw e;
+				}
+			}
 		}
 	}
 
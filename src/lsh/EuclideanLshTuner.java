@@ -0,0 +1,397 @@
+package lsh;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Picks the signature length, bucket width and multiplier of EuclideanLsh
+ * for a data set. A random sample of the input is read into memory, a few
+ * of its vectors are taken out as queries and their exact nearest
+ * neighbours among the rest are computed. Every combination of the given
+ * parameters is then hashed over the sample and scored by:
+ *
+ * <ul>
+ * <li>recall@k of the k rows closest by signature distance, as KnnDriver
+ * ranks them, optionally re-ranked by exact distance;</li>
+ * <li>index size, the bytes per row of a binary signature file and of a
+ * SignatureIndex;</li>
+ * <li>bucket skew, the distinct buckets of a position and the share of rows
+ * in its largest bucket; a share near 100% means the projections collapse
+ * into one bucket and the position tells nothing apart;</li>
+ * <li>query cost, the postings a SignatureIndex reads per query and the
+ * rows sharing at least one bucket with it.</li>
+ * </ul>
+ *
+ * The recommended configuration is the shortest signature reaching the
+ * target recall, then the one reading the fewest postings.
+ */
+public class EuclideanLshTuner {
+	// Columns of the report, one row per trial
+	public static final String	HEADER	= "sig\tbucket\tmult\trecall\tsigBytes/row\tidxBytes/row\tbuckets/pos\tlargest\tpostings/q\tcandidates/q";
+
+	private final List<SparseVector>	rows;
+	private final List<SparseVector>	queries;
+	private final int					vectorLength;
+	private final int					k;
+	private final int					rerank;
+	// Rows of the exact k nearest neighbours of each query
+	private final int[][]				exact;
+
+	public EuclideanLshTuner(List<SparseVector> rows, List<SparseVector> queries, int vectorLength, int k,
+			int rerank) {
+		this.rows = rows;
+		this.queries = queries;
+		this.vectorLength = vectorLength;
+		this.k = Math.min(k, rows.size());
+		this.rerank = rerank;
+		this.exact = new int[queries.size()][];
+		double[] dense = new double[vectorLength + 1];
+		for (int q = 0; q < queries.size(); q++) {
+			exact[q] = closestByDistance(queries.get(q), dense, allRows(), this.k);
+		}
+	}
+
+	/**
+	 * Scores of one parameter combination.
+	 */
+	public static class Trial {
+		int		signatureLength;
+		int		bucketWidth;
+		int		multiplier;
+		double	recall;
+		double	signatureBytes;
+		double	indexBytes;
+		double	bucketsPerPosition;
+		double	largestBucketShare;
+		double	postingsPerQuery;
+		double	candidatesPerQuery;
+
+		public String toRow() {
+			return String.format(Locale.ROOT, "%d\t%d\t%d\t%.3f\t%.0f\t%.1f\t%.1f\t%.1f%%\t%.1f\t%.1f",
+					signatureLength, bucketWidth, multiplier, recall, signatureBytes, indexBytes,
+					bucketsPerPosition, 100 * largestBucketShare, postingsPerQuery, candidatesPerQuery);
+		}
+
+		public String toOptions() {
+			return "-s " + signatureLength + " -b " + bucketWidth + " -m " + multiplier;
+		}
+	}
+
+	/**
+	 * Hashes the sample with one combination of parameters and scores it.
+	 */
+	public Trial trial(long seed, int signatureLength, int bucketWidth, int multiplier) {
+		HashProjection hashFunction = new EuclideanHashFamily(seed, signatureLength, vectorLength, multiplier,
+				bucketWidth).generate();
+		double[] projections = new double[signatureLength];
+		int[][] signatures = new int[rows.size()][signatureLength];
+		for (int r = 0; r < rows.size(); r++) {
+			hashFunction.signature(rows.get(r), bucketWidth, projections, signatures[r]);
+		}
+		// Rows per bucket of every position, as the postings of an index
+		List<Map<Integer, Integer>> bucketSizes = new ArrayList<Map<Integer, Integer>>();
+		long buckets = 0;
+		double largestShare = 0;
+		for (int h = 0; h < signatureLength; h++) {
+			Map<Integer, Integer> sizes = new HashMap<Integer, Integer>();
+			int largest = 0;
+			for (int[] signature : signatures) {
+				int size = sizes.merge(signature[h], 1, Integer::sum);
+				largest = Math.max(largest, size);
+			}
+			bucketSizes.add(sizes);
+			buckets += sizes.size();
+			largestShare += (double) largest / rows.size();
+		}
+
+		Trial trial = new Trial();
+		trial.signatureLength = signatureLength;
+		trial.bucketWidth = bucketWidth;
+		trial.multiplier = multiplier;
+		trial.signatureBytes = 4 * (signatureLength + 1);
+		trial.indexBytes = (4.0 * signatureLength * rows.size() + 12.0 * buckets) / rows.size();
+		trial.bucketsPerPosition = (double) buckets / signatureLength;
+		trial.largestBucketShare = largestShare / signatureLength;
+
+		int[] query = new int[signatureLength];
+		int[] distances = new int[rows.size()];
+		double[] dense = new double[vectorLength + 1];
+		long found = 0;
+		for (int q = 0; q < queries.size(); q++) {
+			hashFunction.signature(queries.get(q), bucketWidth, projections, query);
+			for (int h = 0; h < signatureLength; h++) {
+				Integer size = bucketSizes.get(h).get(query[h]);
+				trial.postingsPerQuery += size == null ? 0 : size;
+			}
+			for (int r = 0; r < rows.size(); r++) {
+				int[] signature = signatures[r];
+				int distance = 0;
+				for (int h = 0; h < signatureLength; h++) {
+					if (signature[h] != query[h])
+						distance++;
+				}
+				distances[r] = distance;
+				if (distance < signatureLength)
+					trial.candidatesPerQuery++;
+			}
+			int[] neighbours = closestBySignature(distances, signatureLength, Math.max(k, rerank));
+			if (rerank > 0)
+				neighbours = closestByDistance(queries.get(q), dense, neighbours, k);
+			found += overlap(exact[q], neighbours, k);
+		}
+		trial.recall = (double) found / (queries.size() * k);
+		trial.postingsPerQuery /= queries.size();
+		trial.candidatesPerQuery /= queries.size();
+		return trial;
+	}
+
+	/**
+	 * Shortest signature reaching the target recall, then fewest postings
+	 * read. The highest recall when none reaches it.
+	 */
+	public static Trial recommend(List<Trial> trials, double targetRecall) {
+		Trial best = null;
+		for (Trial trial : trials) {
+			if (trial.recall < targetRecall)
+				continue;
+			if (best == null || trial.signatureLength < best.signatureLength
+					|| (trial.signatureLength == best.signatureLength && trial.postingsPerQuery < best.postingsPerQuery))
+				best = trial;
+		}
+		if (best != null)
+			return best;
+		for (Trial trial : trials) {
+			if (best == null || trial.recall > best.recall)
+				best = trial;
+		}
+		return best;
+	}
+
+	private int[] allRows() {
+		int[] all = new int[rows.size()];
+		for (int r = 0; r < all.length; r++) {
+			all[r] = r;
+		}
+		return all;
+	}
+
+	// The given number of rows of the candidates closest to the query in
+	// Euclidean distance, closest first
+	private int[] closestByDistance(SparseVector query, double[] dense, int[] candidates, int count) {
+		for (int i = 0; i < query.size(); i++) {
+			dense[query.indices()[i]] += query.values()[i];
+		}
+		double[] distances = new double[candidates.length];
+		Integer[] order = new Integer[candidates.length];
+		for (int c = 0; c < candidates.length; c++) {
+			SparseVector row = rows.get(candidates[c]);
+			double squared = 0;
+			for (int i = 0; i < row.size(); i++) {
+				double value = row.values()[i];
+				squared += value * (value - 2 * dense[row.indices()[i]]);
+			}
+			distances[c] = squared;
+			order[c] = c;
+		}
+		for (int i = 0; i < query.size(); i++) {
+			dense[query.indices()[i]] = 0;
+		}
+		// The query's own norm is the same for every row and left out
+		Arrays.sort(order, (a, b) -> Double.compare(distances[a], distances[b]));
+		int[] closest = new int[Math.min(count, candidates.length)];
+		for (int i = 0; i < closest.length; i++) {
+			closest[i] = candidates[order[i]];
+		}
+		return closest;
+	}
+
+	// The given number of rows closest by signature distance, ties in row
+	// order; distances range from 0 to the signature length
+	private static int[] closestBySignature(int[] distances, int signatureLength, int count) {
+		int[] start = new int[signatureLength + 2];
+		for (int distance : distances) {
+			start[distance + 1]++;
+		}
+		for (int d = 1; d < start.length; d++) {
+			start[d] += start[d - 1];
+		}
+		int[] sorted = new int[distances.length];
+		for (int r = 0; r < distances.length; r++) {
+			sorted[start[distances[r]]++] = r;
+		}
+		return Arrays.copyOf(sorted, Math.min(count, sorted.length));
+	}
+
+	private static int overlap(int[] exact, int[] neighbours, int k) {
+		int found = 0;
+		for (int i = 0; i < Math.min(k, neighbours.length); i++) {
+			for (int row : exact) {
+				if (row == neighbours[i]) {
+					found++;
+					break;
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Reads a uniform sample of the records of the input files, or of the
+	 * files of input directories, in a single pass. The sample is shuffled:
+	 * records the reservoir kept from the start of the input would
+	 * otherwise stay in their input order at its head.
+	 */
+	public static List<SparseVector> sample(String inputs, Configuration conf, int size, Random random)
+			throws IOException {
+		List<SparseVector> sample = new ArrayList<SparseVector>();
+		long seen = 0;
+		for (String input : inputs.split(",")) {
+			Path path = new Path(input);
+			FileSystem fs = path.getFileSystem(conf);
+			for (FileStatus status : fs.listStatus(path)) {
+				String name = status.getPath().getName();
+				if (status.isDirectory() || name.startsWith("_") || name.startsWith("."))
+					continue;
+				BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(status.getPath()),
+						StandardCharsets.UTF_8));
+				try {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						if (line.isEmpty())
+							continue;
+						// Reservoir sampling, parsing only the records kept
+						long slot = seen < size ? seen : (long) (random.nextDouble() * (seen + 1));
+						seen++;
+						if (slot >= size)
+							continue;
+						SparseVector vector = new SparseVector();
+						int tab = line.indexOf('\t');
+						vector.parse(line.substring(tab + 1), '\t');
+						if (slot < sample.size())
+							sample.set((int) slot, vector);
+						else
+							sample.add(vector);
+					}
+				}
+				finally {
+					reader.close();
+				}
+			}
+		}
+		Collections.shuffle(sample, random);
+		return sample;
+	}
+
+	private static int[] parseList(String list) {
+		String[] values = list.split(",");
+		int[] parsed = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			parsed[i] = Integer.parseInt(values[i].trim());
+		}
+		return parsed;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println(
+					"Usage : hadoop jar lsh.jar EuclideanLshTuner input[,input...] [-n sample size] [-q queries] [-k knn] [-r rerank] [-recall target recall] [-s signature lengths] [-b bucket widths] [-m multipliers] [-f number of features] [-seed seed]");
+			System.exit(1);
+		}
+		int sampleSize = 5000;
+		int numQueries = 100;
+		int knn = 10;
+		int rerank = 0;
+		double targetRecall = 0.9;
+		int[] signatureLengths = { 10, 20, 40 };
+		int[] bucketWidths = { 1, 2, 5, 10, 20 };
+		int[] multipliers = { EuclideanLsh.MULTIPLIER };
+		int vectorLength = 0;
+		long seed = new Random().nextLong();
+		for (int i = 1; i < args.length; i++) {
+			switch (args[i]) {
+				case "-n":
+					sampleSize = Integer.parseInt(args[++i]);
+					break;
+				case "-q":
+					numQueries = Integer.parseInt(args[++i]);
+					break;
+				case "-k":
+				case "-knn":
+					knn = Integer.parseInt(args[++i]);
+					break;
+				case "-r":
+					rerank = Integer.parseInt(args[++i]);
+					break;
+				case "-recall":
+					targetRecall = Double.parseDouble(args[++i]);
+					break;
+				case "-sig":
+				case "-s":
+					signatureLengths = parseList(args[++i]);
+					break;
+				case "-b":
+					bucketWidths = parseList(args[++i]);
+					break;
+				case "-m":
+					multipliers = parseList(args[++i]);
+					break;
+				case "-f":
+					vectorLength = Integer.parseInt(args[++i]);
+					break;
+				case "-seed":
+					seed = Long.parseLong(args[++i]);
+					break;
+			}
+		}
+
+		Random random = new Random(seed);
+		List<SparseVector> sample = sample(args[0], new Configuration(), sampleSize + numQueries, random);
+		if (sample.size() <= numQueries) {
+			System.err.println("Only " + sample.size() + " records, fewer than the queries plus one.");
+			System.exit(1);
+		}
+		// The sample is shuffled, so its head is a random set of queries
+		// that are left out of the rows searched
+		List<SparseVector> queries = new ArrayList<SparseVector>(sample.subList(0, numQueries));
+		List<SparseVector> rows = new ArrayList<SparseVector>(sample.subList(numQueries, sample.size()));
+		if (vectorLength == 0) {
+			for (SparseVector vector : sample) {
+				for (int i = 0; i < vector.size(); i++) {
+					vectorLength = Math.max(vectorLength, vector.indices()[i]);
+				}
+			}
+		}
+		System.out.println(rows.size() + " rows, " + queries.size() + " queries, " + vectorLength
+				+ " features, seed " + seed);
+
+		EuclideanLshTuner tuner = new EuclideanLshTuner(rows, queries, vectorLength, knn, rerank);
+		System.out.println(HEADER.replace("recall", "recall@" + tuner.k));
+		List<Trial> trials = new ArrayList<Trial>();
+		for (int signatureLength : signatureLengths) {
+			for (int bucketWidth : bucketWidths) {
+				for (int multiplier : multipliers) {
+					Trial trial = tuner.trial(seed, signatureLength, bucketWidth, multiplier);
+					trials.add(trial);
+					System.out.println(trial.toRow());
+				}
+			}
+		}
+		Trial best = recommend(trials, targetRecall);
+		System.out.println((best.recall >= targetRecall ? "Recommended: " : "No configuration reaches recall "
+				+ targetRecall + ", best: ") + best.toOptions() + " -f " + vectorLength + " -seed " + seed);
+	}
+}
@@ -0,0 +1,65 @@
+package lsh;
+
+/**
+ * Cosine similarity estimates of CosLsh sketches, looked up by Hamming
+ * distance. A sketch of length L can only be at L + 1 distances from
+ * another, so the similarity of each is computed once up front and the
+ * reduce loop is left with a popcount and an array read.
+ */
+public class HammingSimilarity {
+	private final double[] similarities;
+
+	public HammingSimilarity(int sketchLength) {
+		this.similarities = new double[sketchLength + 1];
+		for (int d = 0; d <= sketchLength; d++) {
+			similarities[d] = Math.cos(((double) d / sketchLength) * Math.PI);
+		}
+	}
+
+	public int getSketchLength() {
+		return similarities.length - 1;
+	}
+
+	/**
+	 * @return The estimated similarity, ranging from -1.0 to 1.0, of two
+	 *         sketches at the given Hamming distance.
+	 */
+	public double similarity(int distance) {
+		return similarities[distance];
+	}
+
+	/**
+	 * The similarity falls as the distance grows, so a threshold on the
+	 * similarity is a threshold on the distance.
+	 *
+	 * @return The largest distance whose similarity is at least the
+	 *         threshold, or -1 if there is none.
+	 */
+	public int maxDistance(double threshold) {
+		int d = -1;
+		while (d + 1 < similarities.length && similarities[d + 1] >= threshold) {
+			d++;
+		}
+		return d;
+	}
+
+	/**
+	 * Hamming distance of two sketches packed into long words, least
+	 * significant word first. Missing words of the shorter sketch count as
+	 * zero.
+	 */
+	public static int distance(long[] sketch, long[] other) {
+		int common = Math.min(sketch.length, other.length);
+		int dist = 0;
+		for (int w = 0; w < common; w++) {
+			dist += Long.bitCount(sketch[w] ^ other[w]);
+		}
+		for (int w = common; w < sketch.length; w++) {
+			dist += Long.bitCount(sketch[w]);
+		}
+		for (int w = common; w < other.length; w++) {
+			dist += Long.bitCount(other[w]);
+		}
+		return dist;
+	}
+}
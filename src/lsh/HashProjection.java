@@ -0,0 +1,158 @@
+package lsh;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The random projections of EuclideanLsh stored feature-major: the weights
+ * of all signature positions for one feature are contiguous. Projecting a
+ * sparse vector is then a single pass over its non-zeros, each of which
+ * reads one short run of weights, instead of one pass per signature
+ * position over rows of VECTOR_LENGTH floats.
+ *
+ * The weights are either on the heap or memory-mapped from a file of raw
+ * little-endian floats in the same order, see {@link #map(Path, int, int)}.
+ * Mapped weights are read through a buffer by a subclass, which keeps
+ * buffer reads out of the loop over heap weights.
+ */
+public class HashProjection {
+	private final int		signatureLength;
+	private final int		vectorLength;
+	// weights[feature * signatureLength + position], null when mapped
+	private final float[]	weights;
+
+	public HashProjection(int signatureLength, int vectorLength, float[] weights) {
+		this(signatureLength, vectorLength, weights, weights.length);
+	}
+
+	private HashProjection(int signatureLength, int vectorLength, float[] weights, int size) {
+		if (size != (long) signatureLength * vectorLength) { throw new IllegalArgumentException(
+				"Expected " + (long) signatureLength * vectorLength + " weights, got " + size); }
+		this.signatureLength = signatureLength;
+		this.vectorLength = vectorLength;
+		this.weights = weights;
+	}
+
+	/**
+	 * Projections whose weights are read through a buffer, such as a
+	 * mapping of a projection file.
+	 */
+	private static class MappedHashProjection extends HashProjection {
+		private final FloatBuffer	weights;
+
+		MappedHashProjection(int signatureLength, int vectorLength, FloatBuffer weights) {
+			super(signatureLength, vectorLength, null, weights.capacity());
+			this.weights = weights;
+		}
+
+		@Override
+		public void project(SparseVector vector, double[] projections) {
+			project(weights, getSignatureLength(), vector.indices(), vector.values(), vector.size(), projections);
+		}
+
+		private static void project(FloatBuffer weights, int signatureLength, int[] indices, double[] values,
+				int size, double[] projections) {
+			for (int h = 0; h < signatureLength; h++) {
+				projections[h] = 0;
+			}
+			for (int i = 0; i < size; i++) {
+				int base = (indices[i] - 1) * signatureLength; // index starts from 1
+				double val = values[i];
+				for (int h = 0; h < signatureLength; h++) {
+					projections[h] += val * weights.get(base + h);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Maps a file of raw little-endian weights read-only. The pages are
+	 * shared by every process mapping the file, so the tasks of a node hold
+	 * one copy of the projections between them, outside of their heaps.
+	 */
+	public static HashProjection map(Path file, int signatureLength, int vectorLength) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = (long) signatureLength * vectorLength * Float.BYTES;
+			if (channel.size() != size) { throw new IOException("Expected " + size + " bytes of weights in " + file
+					+ ", found " + channel.size()); }
+			if (size > Integer.MAX_VALUE) { throw new IOException("Projections too large to map: " + size
+					+ " bytes"); }
+			// The mapping stays valid once the channel is closed
+			return new MappedHashProjection(signatureLength, vectorLength, channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					size).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer());
+		}
+	}
+
+	/**
+	 * Transposes a hash function stored one row per signature position.
+	 */
+	public static HashProjection fromRows(float[][] hashFunction) {
+		int signatureLength = hashFunction.length;
+		int vectorLength = signatureLength == 0 ? 0 : hashFunction[0].length;
+		float[] weights = new float[signatureLength * vectorLength];
+		for (int h = 0; h < signatureLength; h++) {
+			for (int f = 0; f < vectorLength; f++) {
+				weights[f * signatureLength + h] = hashFunction[h][f];
+			}
+		}
+		return new HashProjection(signatureLength, vectorLength, weights);
+	}
+
+	public int getSignatureLength() {
+		return signatureLength;
+	}
+
+	public int getVectorLength() {
+		return vectorLength;
+	}
+
+	/**
+	 * Projects a vector onto every signature position in one pass.
+	 *
+	 * @param vector
+	 *            The vector, with feature indices starting from 1.
+	 * @param projections
+	 *            Receives the projection of each signature position.
+	 */
+	public void project(SparseVector vector, double[] projections) {
+		project(weights, signatureLength, vector.indices(), vector.values(), vector.size(), projections);
+	}
+
+	// Reads the weights and lengths from parameters rather than fields, which
+	// keeps them in registers for the whole pass
+	private static void project(float[] weights, int signatureLength, int[] indices, double[] values, int size,
+			double[] projections) {
+		for (int h = 0; h < signatureLength; h++) {
+			projections[h] = 0;
+		}
+		for (int i = 0; i < size; i++) {
+			int base = (indices[i] - 1) * signatureLength; // index starts from 1
+			double val = values[i];
+			for (int h = 0; h < signatureLength; h++) {
+				projections[h] += val * weights[base + h];
+			}
+		}
+	}
+
+	/**
+	 * Computes the bucket of every signature position.
+	 *
+	 * @param vector
+	 *            The vector to hash.
+	 * @param bucketWidth
+	 *            Width of a bucket on each projection.
+	 * @param projections
+	 *            Scratch space of at least getSignatureLength() elements.
+	 * @param signature
+	 *            Receives the bucket of each signature position.
+	 */
+	public void signature(SparseVector vector, int bucketWidth, double[] projections, int[] signature) {
+		project(vector, projections);
+		for (int h = 0; h < signatureLength; h++) {
+			signature[h] = (int) (projections[h] / bucketWidth);
+		}
+	}
+}
@@ -0,0 +1,391 @@
+package lsh;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.OutputFormat;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.lib.reduce.WrappedReducer;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.mapreduce.task.ReduceContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.Progress;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Runs a configured job in this process on a thread pool instead of
+ * submitting it to Hadoop. The job's own mapper and reducer classes are
+ * run, one map task per input split and one reduce task per partition. Map
+ * output is serialized into memory, then sorted and grouped with the job's
+ * comparators in place of the shuffle, so reducers see the same input as in
+ * a Hadoop job. Output goes through the job's output format and committer
+ * and is laid out the same way.
+ *
+ * All map output is held in memory, so this is meant for inputs of up to a
+ * few hundred megabytes. The combiner is not run, as the reducers do not
+ * rely on it.
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class LocalEngine {
+	private final Job			job;
+	private final Configuration	conf;
+	private final int			threads;
+	private final Counters		counters	= new Counters();
+
+	public LocalEngine(Job job, int threads) {
+		this.job = job;
+		this.conf = job.getConfiguration();
+		this.threads = threads;
+	}
+
+	/**
+	 * Runs a job on one thread per processor.
+	 *
+	 * @return The counters of all tasks.
+	 */
+	public static Counters run(Job job) throws IOException, InterruptedException {
+		return new LocalEngine(job, Runtime.getRuntime().availableProcessors()).run();
+	}
+
+	public Counters run() throws IOException, InterruptedException {
+		InputFormat inputFormat;
+		try {
+			inputFormat = ReflectionUtils.newInstance(job.getInputFormatClass(), conf);
+		}
+		catch (ClassNotFoundException e) {
+			throw new IOException("Job class not found", e);
+		}
+		OutputFormat outputFormat = newOutputFormat();
+		outputFormat.checkOutputSpecs(job);
+		OutputCommitter committer = outputFormat.getOutputCommitter(new TaskAttemptContextImpl(conf, taskId(
+				TaskType.JOB_SETUP, 0)));
+		committer.setupJob(job);
+
+		List<InputSplit> splits = inputFormat.getSplits(job);
+		int numReduces = job.getNumReduceTasks();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Callable<MapOutput>> mapTasks = new ArrayList<Callable<MapOutput>>();
+			for (int m = 0; m < splits.size(); m++) {
+				int taskNumber = m;
+				mapTasks.add(() -> runMap(taskNumber, splits.get(taskNumber), inputFormat, numReduces));
+			}
+			List<MapOutput> mapOutputs = runAll(pool, mapTasks);
+			if (numReduces > 0) {
+				List<Callable<MapOutput>> reduceTasks = new ArrayList<Callable<MapOutput>>();
+				for (int r = 0; r < numReduces; r++) {
+					int partition = r;
+					reduceTasks.add(() -> runReduce(partition, mapOutputs));
+				}
+				runAll(pool, reduceTasks);
+			}
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		committer.commitJob(job);
+		return counters;
+	}
+
+	private <T> List<T> runAll(ExecutorService pool, List<Callable<T>> tasks) throws IOException,
+			InterruptedException {
+		List<T> results = new ArrayList<T>();
+		try {
+			for (Future<T> future : pool.invokeAll(tasks)) {
+				results.add(future.get());
+			}
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Task failed", e.getCause());
+		}
+		return results;
+	}
+
+	private MapOutput runMap(int taskNumber, InputSplit split, InputFormat inputFormat, int numReduces)
+			throws Exception {
+		TaskAttemptID id = taskId(TaskType.MAP, taskNumber);
+		TaskAttemptContext context = new TaskAttemptContextImpl(conf, id);
+		OutputFormat outputFormat = newOutputFormat();
+		Counters taskCounters = new Counters();
+		RecordReader reader = inputFormat.createRecordReader(split, context);
+		reader.initialize(split, context);
+		MapOutput mapOutput = null;
+		RecordWriter writer;
+		OutputCommitter committer = outputFormat.getOutputCommitter(context);
+		if (numReduces == 0) {
+			committer.setupTask(context);
+			writer = outputFormat.getRecordWriter(context);
+		}
+		else {
+			mapOutput = new MapOutput(numReduces, ReflectionUtils.newInstance(job.getPartitionerClass(), conf));
+			writer = mapOutput;
+		}
+		Mapper mapper = ReflectionUtils.newInstance(job.getMapperClass(), conf);
+		MapContextImpl mapContext = new MapContextImpl(conf, id, reader, new CountingWriter(writer, taskCounters
+				.findCounter(TaskCounter.MAP_OUTPUT_RECORDS)), committer, new Reporter(taskCounters), split);
+		try {
+			mapper.run(new WrappedMapper().getMapContext(mapContext));
+		}
+		finally {
+			reader.close();
+			writer.close(context);
+		}
+		if (numReduces == 0 && committer.needsTaskCommit(context)) {
+			committer.commitTask(context);
+		}
+		synchronized (counters) {
+			counters.incrAllCounters(taskCounters);
+		}
+		return mapOutput;
+	}
+
+	private MapOutput runReduce(int partition, List<MapOutput> mapOutputs) throws Exception {
+		TaskAttemptID id = taskId(TaskType.REDUCE, partition);
+		TaskAttemptContext context = new TaskAttemptContextImpl(conf, id);
+		OutputFormat outputFormat = newOutputFormat();
+		Counters taskCounters = new Counters();
+		RawComparator sortComparator = job.getSortComparator();
+		SortedPartition input = new SortedPartition(mapOutputs, partition, sortComparator);
+		OutputCommitter committer = outputFormat.getOutputCommitter(context);
+		committer.setupTask(context);
+		RecordWriter writer = outputFormat.getRecordWriter(context);
+		Reducer reducer = ReflectionUtils.newInstance(job.getReducerClass(), conf);
+		ReduceContextImpl reduceContext = new ReduceContextImpl(conf, id, input, taskCounters
+				.findCounter(TaskCounter.REDUCE_INPUT_GROUPS), taskCounters
+				.findCounter(TaskCounter.REDUCE_INPUT_RECORDS), new CountingWriter(writer, taskCounters
+				.findCounter(TaskCounter.REDUCE_OUTPUT_RECORDS)), committer, new Reporter(taskCounters), job
+				.getGroupingComparator(), job.getMapOutputKeyClass(), job.getMapOutputValueClass());
+		try {
+			reducer.run(new WrappedReducer().getReducerContext(reduceContext));
+		}
+		finally {
+			writer.close(context);
+		}
+		if (committer.needsTaskCommit(context)) {
+			committer.commitTask(context);
+		}
+		synchronized (counters) {
+			counters.incrAllCounters(taskCounters);
+		}
+		return null;
+	}
+
+	// File output formats keep the committer of the first task they are
+	// asked for, so every task needs its own instance
+	private OutputFormat newOutputFormat() throws IOException {
+		try {
+			return ReflectionUtils.newInstance(job.getOutputFormatClass(), conf);
+		}
+		catch (ClassNotFoundException e) {
+			throw new IOException("Job class not found", e);
+		}
+	}
+
+	private static TaskAttemptID taskId(TaskType type, int taskNumber) {
+		return new TaskAttemptID("local", 0, type, taskNumber, 0);
+	}
+
+	/**
+	 * Serialized map output of one task, each record appended to the buffer
+	 * of its partition.
+	 */
+	private static class MapOutput extends RecordWriter {
+		private final Partitioner		partitioner;
+		private final DataOutputBuffer[]	buffers;
+		// Start, key length and value length of each record, per partition
+		private final int[][]			records;
+		private final int[]				counts;
+
+		public MapOutput(int numPartitions, Partitioner partitioner) {
+			this.partitioner = partitioner;
+			this.buffers = new DataOutputBuffer[numPartitions];
+			this.records = new int[numPartitions][96];
+			this.counts = new int[numPartitions];
+			for (int p = 0; p < numPartitions; p++) {
+				buffers[p] = new DataOutputBuffer();
+			}
+		}
+
+		@Override
+		public void write(Object key, Object value) throws IOException {
+			int p = partitioner.getPartition(key, value, buffers.length);
+			DataOutputBuffer buffer = buffers[p];
+			int start = buffer.getLength();
+			((Writable) key).write(buffer);
+			int valueStart = buffer.getLength();
+			((Writable) value).write(buffer);
+			if (3 * (counts[p] + 1) > records[p].length) {
+				records[p] = Arrays.copyOf(records[p], records[p].length * 2);
+			}
+			int r = 3 * counts[p]++;
+			records[p][r] = start;
+			records[p][r + 1] = valueStart - start;
+			records[p][r + 2] = buffer.getLength() - valueStart;
+		}
+
+		@Override
+		public void close(TaskAttemptContext context) {
+		}
+	}
+
+	/**
+	 * The records of one partition from every map task, in the order of the
+	 * sort comparator. Records with equal keys keep their map order.
+	 */
+	private static class SortedPartition implements RawKeyValueIterator {
+		private final List<MapOutput>	outputs		= new ArrayList<MapOutput>();
+		private final int				partition;
+		// Map output and record number of each record, in sorted order
+		private final long[]			order;
+		private int						next;
+		private final DataInputBuffer	key			= new DataInputBuffer();
+		private final DataInputBuffer	value		= new DataInputBuffer();
+		private final Progress			progress	= new Progress();
+
+		public SortedPartition(List<MapOutput> mapOutputs, int partition, RawComparator comparator) {
+			this.partition = partition;
+			int total = 0;
+			for (MapOutput output : mapOutputs) {
+				outputs.add(output);
+				total += output.counts[partition];
+			}
+			Long[] records = new Long[total];
+			int i = 0;
+			for (int m = 0; m < outputs.size(); m++) {
+				for (int r = 0; r < outputs.get(m).counts[partition]; r++) {
+					records[i++] = ((long) m << 32) | r;
+				}
+			}
+			Arrays.sort(records, (a, b) -> {
+				MapOutput outputA = outputs.get((int) (a >>> 32));
+				MapOutput outputB = outputs.get((int) (b >>> 32));
+				int ra = 3 * (int) (long) a;
+				int rb = 3 * (int) (long) b;
+				return comparator.compare(outputA.buffers[partition].getData(), outputA.records[partition][ra],
+						outputA.records[partition][ra + 1], outputB.buffers[partition].getData(),
+						outputB.records[partition][rb], outputB.records[partition][rb + 1]);
+			});
+			this.order = new long[total];
+			for (i = 0; i < total; i++) {
+				order[i] = records[i];
+			}
+		}
+
+		@Override
+		public boolean next() {
+			if (next == order.length)
+				return false;
+			MapOutput output = outputs.get((int) (order[next] >>> 32));
+			byte[] data = output.buffers[partition].getData();
+			int r = 3 * (int) order[next];
+			int start = output.records[partition][r];
+			int keyLength = output.records[partition][r + 1];
+			key.reset(data, start, keyLength);
+			value.reset(data, start + keyLength, output.records[partition][r + 2]);
+			next++;
+			return true;
+		}
+
+		@Override
+		public DataInputBuffer getKey() {
+			return key;
+		}
+
+		@Override
+		public DataInputBuffer getValue() {
+			return value;
+		}
+
+		@Override
+		public Progress getProgress() {
+			return progress;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	// Counts the records written, as the Hadoop task would
+	private static class CountingWriter extends RecordWriter {
+		private final RecordWriter	writer;
+		private final Counter		counter;
+
+		public CountingWriter(RecordWriter writer, Counter counter) {
+			this.writer = writer;
+			this.counter = counter;
+		}
+
+		@Override
+		public void write(Object key, Object value) throws IOException, InterruptedException {
+			writer.write(key, value);
+			counter.increment(1);
+		}
+
+		@Override
+		public void close(TaskAttemptContext context) throws IOException, InterruptedException {
+			writer.close(context);
+		}
+	}
+
+	private static class Reporter extends StatusReporter {
+		private final Counters	taskCounters;
+
+		public Reporter(Counters taskCounters) {
+			this.taskCounters = taskCounters;
+		}
+
+		@Override
+		public Counter getCounter(Enum<?> name) {
+			return taskCounters.findCounter(name);
+		}
+
+		@Override
+		public Counter getCounter(String group, String name) {
+			return taskCounters.findCounter(group, name);
+		}
+
+		@Override
+		public void progress() {
+		}
+
+		@Override
+		public float getProgress() {
+			return 0;
+		}
+
+		@Override
+		public void setStatus(String status) {
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package lsh;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+/**
+ * Counters of the hashing jobs. Mappers sum the time of each stage per
+ * record in local fields and add it to the counters when the task ends, so
+ * the hot path only reads the clock.
+ */
+public enum LshCounter {
+	// Records hashed by the mappers
+	RECORDS,
+	PARSE_MILLIS,
+	HASH_MILLIS,
+	// Records and sketches matching a query, as seen by the reducers. The
+	// combiner drops the other sketches before the shuffle on a cluster,
+	// so they are not counted in local mode either.
+	MATCHED_RECORDS,
+	MATCHED_BUCKETS,
+	// Matched sketches shared by the given number of records, to spot
+	// skewed buckets among the results
+	MATCHED_BUCKETS_OF_1,
+	MATCHED_BUCKETS_OF_2_TO_9,
+	MATCHED_BUCKETS_OF_10_TO_99,
+	MATCHED_BUCKETS_OF_100_TO_999,
+	MATCHED_BUCKETS_OF_1000_OR_MORE;
+
+	/**
+	 * The counter of matched buckets holding the given number of records.
+	 */
+	public static LshCounter matchedBucketSize(long records) {
+		if (records < 2)
+			return MATCHED_BUCKETS_OF_1;
+		if (records < 10)
+			return MATCHED_BUCKETS_OF_2_TO_9;
+		if (records < 100)
+			return MATCHED_BUCKETS_OF_10_TO_99;
+		if (records < 1000)
+			return MATCHED_BUCKETS_OF_100_TO_999;
+		return MATCHED_BUCKETS_OF_1000_OR_MORE;
+	}
+
+	/**
+	 * Adds the totals a mapper kept over its records to its counters.
+	 */
+	public static void addMapperTotals(TaskInputOutputContext<?, ?, ?, ?> context, long records, long parseNanos,
+			long hashNanos) {
+		context.getCounter(RECORDS).increment(records);
+		context.getCounter(PARSE_MILLIS).increment(parseNanos / 1000000);
+		context.getCounter(HASH_MILLIS).increment(hashNanos / 1000000);
+	}
+}
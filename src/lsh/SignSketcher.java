@@ -0,0 +1,140 @@
+package lsh;
+import java.util.Arrays;
+
+/**
+ * Computes the CosLsh sketch of dense vectors against a fixed set of
+ * hyperplanes without branching on their bits. The vector is cut into
+ * groups of four elements and the sums of all sixteen subsets of every
+ * group are tabulated once per vector. The projection on a hyperplane is
+ * then one table lookup per group, indexed by the hyperplane's four sign
+ * bits for the group, so every hyperplane costs a quarter of an add per
+ * element and the table is shared by all of them. The vector is tabulated
+ * one block at a time, so the table stays small enough to be read from the
+ * L1 cache.
+ *
+ * Sums are taken in a different order than in
+ * {@link CosLsh#calculateSketch(double[], int, long[][], long[])}, so a
+ * vector lying within rounding error of a hyperplane may get the other
+ * bit. Vectors shorter than {@link #MIN_TABLE_LENGTH}, for which building
+ * the table does not pay, are sketched by that method instead.
+ *
+ * Not thread safe: the table is reused between vectors.
+ */
+public class SignSketcher {
+	public static final int	MIN_TABLE_LENGTH	= 64;
+	// Words of hyperplane bits tabulated at once, 512 elements whose table
+	// of 16 KB stays in the L1 cache while every hyperplane reads it
+	private static final int	BLOCK_WORDS			= 8;
+
+	private final long[][]	hyperplanes;
+	// subsetSums[16 * group + mask], the sum of the group's elements whose
+	// bit is set in mask, for the groups of the current block
+	private final double[]	subsetSums			= new double[BLOCK_WORDS * 256];
+	// Sum over set bits of each hyperplane
+	private final double[]	positives;
+
+	/**
+	 * @param hyperplanes
+	 *            Normal vectors of the hyperplanes, packed by
+	 *            {@link CosLsh#packHyperplanes(java.util.BitSet[])}.
+	 */
+	public SignSketcher(long[][] hyperplanes) {
+		this.hyperplanes = hyperplanes;
+		this.positives = new double[hyperplanes.length];
+	}
+
+	/**
+	 * Sketches the first length elements of a vector.
+	 *
+	 * @param sketch
+	 *            Receives the sketch, at least
+	 *            CosLsh.sketchWords(hyperplanes) words.
+	 */
+	public void sketch(double[] vect, int length, long[] sketch) {
+		if (length < MIN_TABLE_LENGTH) {
+			CosLsh.calculateSketch(vect, length, hyperplanes, sketch);
+			return;
+		}
+		Arrays.fill(positives, 0);
+		double sum = 0;
+		int numWords = (length + Long.SIZE - 1) / Long.SIZE;
+		for (int firstWord = 0; firstWord < numWords; firstWord += BLOCK_WORDS) {
+			int blockWords = Math.min(BLOCK_WORDS, numWords - firstWord);
+			sum += tabulate(vect, length, firstWord * Long.SIZE, blockWords * 16);
+			for (int i = 0; i < hyperplanes.length; i++) {
+				long[] normalVect = hyperplanes[i];
+				// Elements past the hyperplane's words have clear bits
+				int lastWord = Math.min(firstWord + blockWords, normalVect.length);
+				// Four independent sums, so lookups do not wait on each
+				// other's adds
+				double p0 = 0, p1 = 0, p2 = 0, p3 = 0;
+				for (int w = firstWord; w < lastWord; w++) {
+					long word = normalVect[w];
+					int t = (w - firstWord) << 8;
+					p0 += subsetSums[t + (int) (word & 15)];
+					p1 += subsetSums[t + 16 + (int) ((word >>> 4) & 15)];
+					p2 += subsetSums[t + 32 + (int) ((word >>> 8) & 15)];
+					p3 += subsetSums[t + 48 + (int) ((word >>> 12) & 15)];
+					p0 += subsetSums[t + 64 + (int) ((word >>> 16) & 15)];
+					p1 += subsetSums[t + 80 + (int) ((word >>> 20) & 15)];
+					p2 += subsetSums[t + 96 + (int) ((word >>> 24) & 15)];
+					p3 += subsetSums[t + 112 + (int) ((word >>> 28) & 15)];
+					p0 += subsetSums[t + 128 + (int) ((word >>> 32) & 15)];
+					p1 += subsetSums[t + 144 + (int) ((word >>> 36) & 15)];
+					p2 += subsetSums[t + 160 + (int) ((word >>> 40) & 15)];
+					p3 += subsetSums[t + 176 + (int) ((word >>> 44) & 15)];
+					p0 += subsetSums[t + 192 + (int) ((word >>> 48) & 15)];
+					p1 += subsetSums[t + 208 + (int) ((word >>> 52) & 15)];
+					p2 += subsetSums[t + 224 + (int) ((word >>> 56) & 15)];
+					p3 += subsetSums[t + 240 + (int) (word >>> 60)];
+				}
+				positives[i] += (p0 + p1) + (p2 + p3);
+			}
+		}
+		Arrays.fill(sketch, 0L);
+		for (int i = 0; i < hyperplanes.length; i++) {
+			// Same test as CosLsh: the dot product with the +1/-1
+			// hyperplane is twice the sum over set bits minus the total
+			if (2 * positives[i] - sum >= 0)
+				sketch[i >>> 6] |= 1L << i;
+		}
+	}
+
+	/**
+	 * Fills the subset sums of the given number of groups starting at an
+	 * element. Elements past the vector's length count as zero.
+	 *
+	 * @return The sum of the tabulated elements.
+	 */
+	private double tabulate(double[] vect, int length, int first, int groups) {
+		double sum = 0;
+		for (int g = 0; g < groups; g++) {
+			int e = first + (g << 2);
+			double e0 = e < length ? vect[e] : 0;
+			double e1 = e + 1 < length ? vect[e + 1] : 0;
+			double e2 = e + 2 < length ? vect[e + 2] : 0;
+			double e3 = e + 3 < length ? vect[e + 3] : 0;
+			double e01 = e0 + e1;
+			double e23 = e2 + e3;
+			sum += e01 + e23;
+			int t = g << 4;
+			subsetSums[t] = 0;
+			subsetSums[t + 1] = e0;
+			subsetSums[t + 2] = e1;
+			subsetSums[t + 3] = e01;
+			subsetSums[t + 4] = e2;
+			subsetSums[t + 5] = e0 + e2;
+			subsetSums[t + 6] = e1 + e2;
+			subsetSums[t + 7] = e01 + e2;
+			subsetSums[t + 8] = e3;
+			subsetSums[t + 9] = e0 + e3;
+			subsetSums[t + 10] = e1 + e3;
+			subsetSums[t + 11] = e01 + e3;
+			subsetSums[t + 12] = e23;
+			subsetSums[t + 13] = e0 + e23;
+			subsetSums[t + 14] = e1 + e23;
+			subsetSums[t + 15] = e01 + e23;
+		}
+		return sum;
+	}
+}
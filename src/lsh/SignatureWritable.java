@@ -0,0 +1,53 @@
+package lsh;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * The bucket ids of an EuclideanLsh signature. The array is set by
+ * reference so a mapper can reuse it for every record. toString() gives the
+ * comma-separated text form written by TextOutputFormat.
+ */
+public class SignatureWritable implements Writable {
+	private int[]	buckets	= new int[0];
+
+	public void set(int[] buckets) {
+		this.buckets = buckets;
+	}
+
+	public int[] get() {
+		return buckets;
+	}
+
+	@Override
+	public void readFields(DataInput dataInput) throws IOException {
+		int length = dataInput.readInt();
+		if (buckets.length != length) {
+			buckets = new int[length];
+		}
+		for (int i = 0; i < length; i++) {
+			buckets[i] = dataInput.readInt();
+		}
+	}
+
+	@Override
+	public void write(DataOutput dataOutput) throws IOException {
+		dataOutput.writeInt(buckets.length);
+		for (int bucket : buckets) {
+			dataOutput.writeInt(bucket);
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder stringHash = new StringBuilder();
+		for (int i = 0; i < buckets.length; i++) {
+			if (i > 0)
+				stringHash.append(',');
+			stringHash.append(buckets[i]);
+		}
+		return stringHash.toString();
+	}
+}
@@ -0,0 +1,172 @@
+package lsh;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * Reusable sparse vector parsed from "index:value" tokens. Parsing works
+ * directly on the bytes of a record into primitive arrays that are only
+ * grown, never reallocated per record, so a mapper can parse every record
+ * into the same instance without creating garbage.
+ */
+public class SparseVector {
+	// Exact powers of ten, dividing by them keeps the parse correctly rounded
+	private static final double[]	POWERS_OF_TEN	= { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+			1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	private int[]					indices			= new int[64];
+	private double[]				values			= new double[64];
+	private int						size;
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return The indices of the non-zero entries. Only the first
+	 *         {@link #size()} are valid.
+	 */
+	public int[] indices() {
+		return indices;
+	}
+
+	/**
+	 * @return The values of the non-zero entries. Only the first
+	 *         {@link #size()} are valid.
+	 */
+	public double[] values() {
+		return values;
+	}
+
+	/**
+	 * Parses the part of a record after its label, i.e. after the first tab.
+	 *
+	 * @param record
+	 *            A line of the form label, tab, then separated tokens.
+	 * @param separator
+	 *            The character between two tokens.
+	 */
+	public void parseRecord(Text record, char separator) {
+		byte[] bytes = record.getBytes();
+		int length = record.getLength();
+		int vectStart = 0;
+		while (vectStart < length && bytes[vectStart] != '\t') {
+			vectStart++;
+		}
+		parse(bytes, vectStart + 1, length, separator);
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Appends a non-zero entry, growing the arrays when they are full.
+	 */
+	public void add(int index, double value) {
+		if (size == indices.length) {
+			indices = Arrays.copyOf(indices, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+		}
+		indices[size] = index;
+		values[size] = value;
+		size++;
+	}
+
+	public void parse(String vector, char separator) {
+		byte[] bytes = vector.getBytes(StandardCharsets.UTF_8);
+		parse(bytes, 0, bytes.length, separator);
+	}
+
+	/**
+	 * Parses separated "index:value" tokens from bytes[start, end). Empty
+	 * tokens and trailing line breaks are ignored.
+	 */
+	public void parse(byte[] bytes, int start, int end, char separator) {
+		size = 0;
+		int tokenStart = start;
+		for (int i = start; i <= end; i++) {
+			if (i == end || bytes[i] == separator) {
+				parseToken(bytes, tokenStart, i);
+				tokenStart = i + 1;
+			}
+		}
+	}
+
+	private void parseToken(byte[] bytes, int start, int end) {
+		while (end > start && (bytes[end - 1] == '\r' || bytes[end - 1] == '\n' || bytes[end - 1] == ' ')) {
+			end--;
+		}
+		if (start == end)
+			return;
+		int colon = start;
+		while (colon < end && bytes[colon] != ':') {
+			colon++;
+		}
+		if (colon == end) { throw new NumberFormatException("Missing ':' in "
+				+ new String(bytes, start, end - start, StandardCharsets.UTF_8)); }
+		add(parseInt(bytes, start, colon), parseDouble(bytes, colon + 1, end));
+	}
+
+	static int parseInt(byte[] bytes, int start, int end) {
+		if (start == end)
+			throw new NumberFormatException("Empty index");
+		int result = 0;
+		for (int i = start; i < end; i++) {
+			int digit = bytes[i] - '0';
+			// Anything but digits, or a value that may overflow, is left to
+			// Integer.parseInt, which also reports the error
+			if (digit < 0 || digit > 9 || result > (Integer.MAX_VALUE - digit) / 10)
+				return Integer.parseInt(new String(bytes, start, end - start, StandardCharsets.UTF_8));
+			result = result * 10 + digit;
+		}
+		return result;
+	}
+
+	/**
+	 * Parses plain decimals without allocating. Anything else, such as
+	 * exponents or more than 15 significant digits, falls back to
+	 * {@link Double#parseDouble(String)}.
+	 */
+	static double parseDouble(byte[] bytes, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+			negative = bytes[i] == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int significantDigits = 0;
+		int digits = 0;
+		int scale = 0;
+		boolean fraction = false;
+		for (; i < end; i++) {
+			byte c = bytes[i];
+			if (c >= '0' && c <= '9') {
+				if (mantissa != 0 || c != '0')
+					significantDigits++;
+				if (significantDigits > 15)
+					return slowParseDouble(bytes, start, end);
+				mantissa = mantissa * 10 + (c - '0');
+				digits++;
+				if (fraction)
+					scale++;
+			}
+			else if (c == '.' && !fraction) {
+				fraction = true;
+			}
+			else {
+				return slowParseDouble(bytes, start, end);
+			}
+		}
+		if (digits == 0 || scale >= POWERS_OF_TEN.length)
+			return slowParseDouble(bytes, start, end);
+		double value = mantissa / POWERS_OF_TEN[scale];
+		return negative ? -value : value;
+	}
+
+	private static double slowParseDouble(byte[] bytes, int start, int end) {
+		return Double.parseDouble(new String(bytes, start, end - start, StandardCharsets.UTF_8));
+	}
+}
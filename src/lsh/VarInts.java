@@ -0,0 +1,67 @@
+package lsh;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Zigzag variable-length ints. The sign is moved to the lowest bit, so
+ * small values of either sign, like the bucket ids of a signature, take
+ * one byte. Seven bits are written per byte, lowest first, and the high bit
+ * of a byte is set when more follow.
+ */
+public class VarInts {
+	// Most bytes an int takes
+	public static final int	MAX_BYTES	= 5;
+
+	/**
+	 * Writes a value into bytes at offset, which has room for MAX_BYTES.
+	 *
+	 * @return The offset after the value.
+	 */
+	public static int write(int value, byte[] bytes, int offset) {
+		int zigzag = (value << 1) ^ (value >> 31);
+		while ((zigzag & ~0x7F) != 0) {
+			bytes[offset++] = (byte) ((zigzag & 0x7F) | 0x80);
+			zigzag >>>= 7;
+		}
+		bytes[offset++] = (byte) zigzag;
+		return offset;
+	}
+
+	public static void write(int value, DataOutput out) throws IOException {
+		int zigzag = (value << 1) ^ (value >> 31);
+		while ((zigzag & ~0x7F) != 0) {
+			out.writeByte((zigzag & 0x7F) | 0x80);
+			zigzag >>>= 7;
+		}
+		out.writeByte(zigzag);
+	}
+
+	public static int read(DataInput in) throws IOException {
+		int b = in.readByte();
+		int zigzag = b & 0x7F;
+		for (int shift = 7; b < 0; shift += 7) {
+			b = in.readByte();
+			zigzag |= (b & 0x7F) << shift;
+		}
+		return (zigzag >>> 1) ^ -(zigzag & 1);
+	}
+
+	/**
+	 * Reads count values from bytes starting at offset.
+	 *
+	 * @return The offset after the last value.
+	 */
+	public static int read(byte[] bytes, int offset, int[] values, int count) {
+		for (int i = 0; i < count; i++) {
+			int b = bytes[offset++];
+			int zigzag = b & 0x7F;
+			for (int shift = 7; b < 0; shift += 7) {
+				b = bytes[offset++];
+				zigzag |= (b & 0x7F) << shift;
+			}
+			values[i] = (zigzag >>> 1) ^ -(zigzag & 1);
+		}
+		return offset;
+	}
+}
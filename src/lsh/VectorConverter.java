@@ -0,0 +1,93 @@
+package lsh;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+
+/**
+ * Converts a text corpus once into the binary format read by
+ * BinaryVectorInputFormat, so that hashing it again with other parameters
+ * neither parses decimals nor reads the text. Map only: every input split
+ * becomes one converted file, in the order of its records. Records are
+ * keyed by the name of their source file and their label, separated by a
+ * tab, so EuclideanLsh names the rows of a converted corpus after their
+ * source file as it does for text input.
+ */
+public class VectorConverter {
+	// Character between the tokens of a record, a tab by default
+	public static final String	SEPARATOR_KEY	= "lsh.convert.separator";
+
+	public static class ConvertMapper extends Mapper<Object, Text, Text, VectorWritable> {
+		private static final byte[]	TAB	= { '\t' };
+		private Text			label		= new Text();
+		private Text			convertedKey	= new Text();
+		private Text			source		= new Text();
+		private SparseVector	vector		= new SparseVector();
+		private VectorWritable	writable	= new VectorWritable(vector);
+		private char			separator;
+
+		@Override
+		protected void setup(Mapper<Object, Text, Text, VectorWritable>.Context context) throws IOException,
+				InterruptedException {
+			super.setup(context);
+			separator = context.getConfiguration().get(SEPARATOR_KEY, "\t").charAt(0);
+			source.set(((FileSplit) context.getInputSplit()).getPath().getName());
+		}
+
+		@Override
+		public void map(Object key, Text value, Context context) throws IOException, InterruptedException {
+			BinaryVectorInputFormat.readRecord(key, value, separator, vector, label);
+			convertedKey.set(source);
+			convertedKey.append(TAB, 0, 1);
+			convertedKey.append(label.getBytes(), 0, label.getLength());
+			context.write(convertedKey, writable);
+		}
+	}
+
+	public static void main(String[] args) throws IOException, ClassNotFoundException, InterruptedException {
+		if (args.length < 2) {
+			System.err.println("Usage : hadoop jar lsh.jar VectorConverter input[,input...] output [-cos] [-local]");
+			System.exit(1);
+		}
+		// EuclideanLsh records separate tokens by tabs, CosLsh records by
+		// slashes
+		char separator = '\t';
+		boolean local = false;
+		for (int i = 2; i < args.length; i++) {
+			switch (args[i]) {
+				case "-cos":
+					separator = '/';
+					break;
+				case "-local":
+					local = true;
+					break;
+			}
+		}
+		Configuration conf = new Configuration();
+		conf.set(SEPARATOR_KEY, String.valueOf(separator));
+		Job job = Job.getInstance(conf);
+		job.setJarByClass(VectorConverter.class);
+		job.setMapperClass(ConvertMapper.class);
+		job.setNumReduceTasks(0);
+		job.setOutputKeyClass(Text.class);
+		job.setOutputValueClass(VectorWritable.class);
+		job.setOutputFormatClass(SequenceFileOutputFormat.class);
+		FileOutputFormat.setCompressOutput(job, true);
+		SequenceFileOutputFormat.setOutputCompressionType(job, CompressionType.BLOCK);
+		FileInputFormat.addInputPaths(job, args[0]);
+		FileOutputFormat.setOutputPath(job, new Path(args[1]));
+		if (local) {
+			LocalEngine.run(job);
+			System.exit(0);
+		}
+		System.exit(job.waitForCompletion(true) ? 0 : 1);
+	}
+}
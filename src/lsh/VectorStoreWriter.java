@@ -0,0 +1,66 @@
+package lsh;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+
+/**
+ * Writes the sparse vectors hashed by a task so that they can be read back
+ * by row number through a memory mapping. Rows are numbered in the order
+ * they are written, which for EuclideanLsh is the order of the rows in the
+ * task's signature file. All numbers are big-endian.
+ *
+ * <pre>
+ * header  : MAGIC
+ * vectors : (int non-zeros, int[non-zeros] indices, double[non-zeros] values)*
+ * offsets : long[count] offset of each vector
+ * trailer : long offset of the offsets, int count, MAGIC
+ * </pre>
+ */
+public class VectorStoreWriter implements Closeable {
+	public static final int		MAGIC			= 0x4C534856;
+	public static final String	EXTENSION		= ".vec";
+	public static final int		HEADER_SIZE		= 4;
+	public static final int		TRAILER_SIZE	= 16;
+
+	private final FSDataOutputStream	out;
+	private long[]						offsets	= new long[1024];
+	private int							count;
+
+	public VectorStoreWriter(FSDataOutputStream out) throws IOException {
+		this.out = out;
+		out.writeInt(MAGIC);
+	}
+
+	public void write(SparseVector vector) throws IOException {
+		write(vector.indices(), vector.values(), vector.size());
+	}
+
+	// Writes the first size non-zeros of the given arrays as one vector
+	public void write(int[] indices, double[] values, int size) throws IOException {
+		if (count == offsets.length) {
+			offsets = Arrays.copyOf(offsets, count * 2);
+		}
+		offsets[count++] = out.getPos();
+		out.writeInt(size);
+		for (int i = 0; i < size; i++) {
+			out.writeInt(indices[i]);
+		}
+		for (int i = 0; i < size; i++) {
+			out.writeDouble(values[i]);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		long offsetsOffset = out.getPos();
+		for (int i = 0; i < count; i++) {
+			out.writeLong(offsets[i]);
+		}
+		out.writeLong(offsetsOffset);
+		out.writeInt(count);
+		out.writeInt(MAGIC);
+		out.close();
+	}
+}
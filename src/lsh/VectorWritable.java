@@ -0,0 +1,60 @@
+package lsh;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Sparse vector of a converted corpus: the number of non-zeros and the
+ * indices as variable-length ints, then the values as floats. Reading
+ * fills the same SparseVector every time, so a record reader can hand out
+ * one instance for all records.
+ *
+ * Values are stored as floats, half the bytes of a double and the same
+ * precision as the projections of EuclideanLsh. A vector within float
+ * rounding of a bucket edge or hyperplane may hash differently than from
+ * its text.
+ */
+public class VectorWritable implements Writable {
+	private final SparseVector	vector;
+
+	public VectorWritable() {
+		this(new SparseVector());
+	}
+
+	public VectorWritable(SparseVector vector) {
+		this.vector = vector;
+	}
+
+	public SparseVector get() {
+		return vector;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		int[] indices = vector.indices();
+		double[] values = vector.values();
+		WritableUtils.writeVInt(out, vector.size());
+		for (int i = 0; i < vector.size(); i++) {
+			WritableUtils.writeVInt(out, indices[i]);
+		}
+		for (int i = 0; i < vector.size(); i++) {
+			out.writeFloat((float) values[i]);
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		int size = WritableUtils.readVInt(in);
+		vector.clear();
+		for (int i = 0; i < size; i++) {
+			vector.add(WritableUtils.readVInt(in), 0);
+		}
+		double[] values = vector.values();
+		for (int i = 0; i < size; i++) {
+			values[i] = in.readFloat();
+		}
+	}
+}
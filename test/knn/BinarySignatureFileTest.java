@@ -0,0 +1,173 @@
+package knn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.Text;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import lsh.BinarySignatureOutputFormat.BinarySignatureRecordWriter;
+import lsh.SignatureWritable;
+import lsh.VarInts;
+
+/**
+ * Writes signature files with BinarySignatureRecordWriter and reads them
+ * back with BinarySignatureFile, in the fixed-width and the compressed
+ * layout.
+ */
+public class BinarySignatureFileTest {
+	private static final int[]	VALUES	= { 0, 1, -1, 63, -64, 64, -65, 8191, -8192, 1 << 20, -(1 << 20),
+			Integer.MAX_VALUE, Integer.MIN_VALUE };
+
+	private Path				directory;
+	private FileSystem			fs;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("signatures");
+		fs = FileSystem.getLocal(new Configuration());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		for (Path file : Files.walk(directory).sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void varIntsRoundTrip() throws IOException {
+		byte[] bytes = new byte[VALUES.length * VarInts.MAX_BYTES];
+		int end = 0;
+		for (int value : VALUES) {
+			end = VarInts.write(value, bytes, end);
+		}
+		int[] read = new int[VALUES.length];
+		assertEquals(end, VarInts.read(bytes, 0, read, VALUES.length));
+		assertArrayEquals(VALUES, read);
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(stream);
+		for (int value : VALUES) {
+			VarInts.write(value, out);
+		}
+		assertArrayEquals(Arrays.copyOf(bytes, end), stream.toByteArray());
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(stream.toByteArray()));
+		for (int value : VALUES) {
+			assertEquals(value, VarInts.read(in));
+		}
+	}
+
+	@Test
+	public void fixedWidthRoundTrip() throws IOException {
+		roundTrip(0, rows(10, 6));
+	}
+
+	@Test
+	public void compressedRoundTripWithPartialLastBlock() throws IOException {
+		roundTrip(4, rows(10, 6));
+	}
+
+	@Test
+	public void compressedRoundTripOfWholeBlocks() throws IOException {
+		roundTrip(5, rows(10, 6));
+	}
+
+	@Test
+	public void emptyFiles() throws IOException {
+		roundTrip(0, new int[0][]);
+		roundTrip(4, new int[0][]);
+	}
+
+	// Rows of buckets of both signs, including extreme ones
+	private static int[][] rows(int count, int signatureLength) {
+		int[][] rows = new int[count][signatureLength];
+		for (int r = 0; r < count; r++) {
+			for (int h = 0; h < signatureLength; h++) {
+				rows[r][h] = VALUES[(r * signatureLength + h) % VALUES.length] - r;
+			}
+		}
+		return rows;
+	}
+
+	private void roundTrip(int rowsPerBlock, int[][] rows) throws IOException {
+		Path file = directory.resolve("part-" + rowsPerBlock + "-" + rows.length + ".sig");
+		BinarySignatureRecordWriter writer = new BinarySignatureRecordWriter(fs.create(
+				new org.apache.hadoop.fs.Path(file.toUri()), false), rowsPerBlock);
+		SignatureWritable signature = new SignatureWritable();
+		for (int r = 0; r < rows.length; r++) {
+			signature.set(rows[r]);
+			writer.write(signature, new Text(entry(r)));
+		}
+		writer.close(null);
+
+		try (BinarySignatureFile signatures = BinarySignatureFile.open(file)) {
+			assertEquals(rows.length, signatures.size());
+			assertEquals(rowsPerBlock, signatures.getRowsPerBlock());
+			List<int[]> read = new ArrayList<int[]>();
+			List<String> entries = new ArrayList<String>();
+			signatures.forEach((buckets, entry) -> {
+				read.add(buckets.clone());
+				entries.add(entry);
+			});
+			assertEquals(rows.length, read.size());
+			for (int r = 0; r < rows.length; r++) {
+				assertArrayEquals(rows[r], read.get(r));
+				assertEquals(entry(r), entries.get(r));
+			}
+			// Every range, whether or not it starts or ends inside a block,
+			// finds each of its rows at distance 0 from itself
+			for (int first = 0; first < rows.length; first++) {
+				for (int last = first + 1; last <= rows.length; last++) {
+					for (int r = first; r < last; r++) {
+						int[] distances = new int[rows.length];
+						Arrays.fill(distances, -1);
+						signatures.search(first, last, new MultiProbeQuery(rows[r]), new NeighbourSink() {
+							@Override
+							public boolean accepts(int distance) {
+								return true;
+							}
+
+							@Override
+							public void add(int distance, String entry) {
+								throw new AssertionError("Row not passed");
+							}
+
+							@Override
+							public void add(int distance, String entry, long row) {
+								assertEquals(entry((int) row), entry);
+								distances[(int) row] = distance;
+							}
+						});
+						for (int other = 0; other < rows.length; other++) {
+							assertEquals(other >= first && other < last, distances[other] >= 0);
+						}
+						assertEquals(0, distances[r]);
+					}
+				}
+			}
+		}
+	}
+
+	// Entries repeat, as the file names of a task's rows do
+	private static String entry(int row) {
+		return "file-" + (row % 3);
+	}
+}
@@ -0,0 +1,262 @@
+package lsh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.reduce.WrappedReducer;
+import org.apache.hadoop.mapreduce.task.ReduceContextImpl;
+import org.apache.hadoop.util.Progress;
+import org.junit.Test;
+
+import lsh.CosLsh.QueryPartitioner;
+import lsh.CosLsh.RankWritable;
+import lsh.CosLsh.TopKReducer;
+
+/**
+ * Checks the shuffle of a CosLsh top-k search: the raw sort and grouping
+ * comparators of RankWritable against its deserialized order, and the
+ * output of TopKReducer on keys sorted and grouped by them.
+ */
+public class RankWritableTest {
+	private static final int	SKETCH_LENGTH	= 30;
+
+	@Test
+	public void rawComparatorAgreesWithCompareTo() throws IOException {
+		RawComparator<RankWritable> comparator = WritableComparator.get(RankWritable.class);
+		assertTrue(comparator instanceof RankWritable.Comparator);
+		List<RankWritable> keys = keys();
+		for (RankWritable a : keys) {
+			byte[] serializedA = serialize(a);
+			for (RankWritable b : keys) {
+				byte[] serializedB = serialize(b);
+				assertEquals(a + " vs " + b, Integer.signum(a.compareTo(b)), Integer.signum(comparator.compare(
+						serializedA, 0, serializedA.length, serializedB, 0, serializedB.length)));
+			}
+		}
+	}
+
+	@Test
+	public void queryComparatorGroupsByQueryOnly() throws IOException {
+		RankWritable.QueryComparator comparator = new RankWritable.QueryComparator();
+		List<RankWritable> keys = keys();
+		for (RankWritable a : keys) {
+			byte[] serializedA = serialize(a);
+			for (RankWritable b : keys) {
+				byte[] serializedB = serialize(b);
+				int expected = Integer.signum(Integer.compare(a.getQuery(), b.getQuery()));
+				assertEquals(a + " vs " + b, expected, Integer.signum(comparator.compare(serializedA, 0,
+						serializedA.length, serializedB, 0, serializedB.length)));
+				assertEquals(a + " vs " + b, expected, Integer.signum(comparator.compare(a, b)));
+			}
+		}
+	}
+
+	@Test
+	public void partitionerKeepsQueriesTogether() {
+		QueryPartitioner partitioner = new QueryPartitioner();
+		for (RankWritable key : keys()) {
+			RankWritable other = rank(key.getQuery(), 0);
+			assertEquals(partitioner.getPartition(other, null, 7), partitioner.getPartition(key, null, 7));
+		}
+	}
+
+	@Test
+	public void reducerWritesTheKNearestOfEachQuery() throws Exception {
+		int k = 3;
+		// Query 0 has more than k records, query 1 exactly k, query 2 fewer,
+		// and some distances are shared by several records
+		int[][] records = { { 0, 5 }, { 0, 2 }, { 1, 7 }, { 0, 9 }, { 2, 4 }, { 0, 2 }, { 1, 0 }, { 0, 3 },
+				{ 1, 7 }, { 0, 1 }, { 0, 8 } };
+		List<byte[][]> shuffled = new ArrayList<byte[][]>();
+		for (int r = 0; r < records.length; r++) {
+			shuffled.add(new byte[][] { serialize(rank(records[r][0], records[r][1])),
+					serialize(new Text(records[r][1] + "-" + r)) });
+		}
+		RawComparator<RankWritable> sortComparator = WritableComparator.get(RankWritable.class);
+		Collections.sort(shuffled, (a, b) -> sortComparator.compare(a[0], 0, a[0].length, b[0], 0, b[0].length));
+
+		Configuration conf = new Configuration();
+		conf.setBoolean(CosLsh.BATCH_KEY, true);
+		conf.setInt(CosLsh.SKETCH_LENGTH_KEY, SKETCH_LENGTH);
+		conf.setInt(CosLsh.TOP_K_KEY, k);
+		List<String> output = reduce(conf, shuffled);
+
+		HammingSimilarity similarityTable = new HammingSimilarity(SKETCH_LENGTH);
+		int[] written = new int[3];
+		int lastQuery = -1;
+		int lastDistance = -1;
+		for (String line : output) {
+			String[] fields = line.split("\t");
+			int query = Integer.parseInt(fields[1]);
+			int distance = Integer.parseInt(fields[2].substring(0, fields[2].indexOf('-')));
+			assertEquals(similarityTable.similarity(distance), Double.parseDouble(fields[0]), 0);
+			assertTrue("Queries out of order", query >= lastQuery);
+			if (query == lastQuery) {
+				assertTrue("Distances out of order", distance >= lastDistance);
+			}
+			written[query]++;
+			lastQuery = query;
+			lastDistance = distance;
+		}
+		assertEquals(k, written[0]);
+		assertEquals(k, written[1]);
+		assertEquals(1, written[2]);
+		// The nearest records of query 0 are at distances 1, 2 and 2
+		assertTrue(output.get(0).endsWith("\t0\t1-9"));
+		assertTrue(output.get(1).contains("\t0\t2-"));
+		assertTrue(output.get(2).contains("\t0\t2-"));
+	}
+
+	// Keys with equal queries and different distances, equal distances and
+	// different queries, and the extremes of both
+	private static List<RankWritable> keys() {
+		List<RankWritable> keys = new ArrayList<RankWritable>();
+		int[] values = { 0, 1, 2, 255, 256, 65536, Integer.MAX_VALUE };
+		for (int query : values) {
+			for (int distance : values) {
+				keys.add(rank(query, distance));
+			}
+		}
+		Random random = new Random(42);
+		for (int i = 0; i < 50; i++) {
+			keys.add(rank(random.nextInt(4), random.nextInt(SKETCH_LENGTH + 1)));
+		}
+		return keys;
+	}
+
+	private static RankWritable rank(int query, int distance) {
+		RankWritable rank = new RankWritable();
+		rank.set(query, distance);
+		return rank;
+	}
+
+	private static byte[] serialize(Writable writable) throws IOException {
+		DataOutputBuffer buffer = new DataOutputBuffer();
+		writable.write(buffer);
+		byte[] bytes = new byte[buffer.getLength()];
+		System.arraycopy(buffer.getData(), 0, bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	/**
+	 * Runs a TopKReducer over sorted records grouped with the query
+	 * comparator, as in the job.
+	 *
+	 * @return Each output record as similarity, tab, value.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static List<String> reduce(Configuration conf, List<byte[][]> sorted) throws Exception {
+		List<String> output = new ArrayList<String>();
+		RecordWriter<DoubleWritable, Text> writer = new RecordWriter<DoubleWritable, Text>() {
+			@Override
+			public void write(DoubleWritable key, Text value) {
+				output.add(key.get() + "\t" + value);
+			}
+
+			@Override
+			public void close(TaskAttemptContext context) {
+			}
+		};
+		Counters counters = new Counters();
+		ReduceContextImpl reduceContext = new ReduceContextImpl(conf, new TaskAttemptID("test", 0, TaskType.REDUCE,
+				0, 0), new SortedRecords(sorted), counters.findCounter("test", "groups"), counters.findCounter(
+						"test", "records"), writer, null, new Reporter(counters), new RankWritable.QueryComparator(),
+				RankWritable.class, Text.class);
+		new TopKReducer().run(new WrappedReducer().getReducerContext(reduceContext));
+		return output;
+	}
+
+	private static class SortedRecords implements RawKeyValueIterator {
+		private final List<byte[][]>	records;
+		private final DataInputBuffer	key		= new DataInputBuffer();
+		private final DataInputBuffer	value	= new DataInputBuffer();
+		private int						next;
+
+		SortedRecords(List<byte[][]> records) {
+			this.records = records;
+		}
+
+		@Override
+		public DataInputBuffer getKey() {
+			return key;
+		}
+
+		@Override
+		public DataInputBuffer getValue() {
+			return value;
+		}
+
+		@Override
+		public boolean next() {
+			if (next == records.size()) {
+				return false;
+			}
+			byte[][] record = records.get(next++);
+			key.reset(record[0], record[0].length);
+			value.reset(record[1], record[1].length);
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public Progress getProgress() {
+			return new Progress();
+		}
+	}
+
+	private static class Reporter extends StatusReporter {
+		private final Counters	counters;
+
+		Reporter(Counters counters) {
+			this.counters = counters;
+		}
+
+		@Override
+		public Counter getCounter(Enum<?> name) {
+			return counters.findCounter(name);
+		}
+
+		@Override
+		public Counter getCounter(String group, String name) {
+			return counters.findCounter(group, name);
+		}
+
+		@Override
+		public void progress() {
+		}
+
+		@Override
+		public float getProgress() {
+			return 0;
+		}
+
+		@Override
+		public void setStatus(String status) {
+		}
+	}
+}